@@ -0,0 +1,101 @@
+package entity;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+import main.gamePanel;
+import main.keyHandler;
+
+// Measures the per-entity hot path: Player.update (input, tile and object collision,
+// movement, animation) plus sprite selection, and compares the direction dispatch
+// against the old String-based version.
+// Run with res on the classpath: java -Djava.awt.headless=true -cp bin:res entity.EntityUpdateBenchmark
+public class EntityUpdateBenchmark {
+    static final int WARMUP = 200000;
+    static final int ITERATIONS = 2000000;
+    static final String[] NAMES = {"up", "down", "left", "right"};
+
+    static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        gamePanel gp = new gamePanel();
+        keyHandler keys = new keyHandler();
+        Player player = new Player(gp, keys);
+
+        run("Player.update + sprite", WARMUP, player, keys);
+        for (int round = 0; round < 3; round++) {
+            run("Player.update + sprite", ITERATIONS, player, keys);
+        }
+        for (int round = 0; round < 3; round++) {
+            runDispatch(ITERATIONS, player);
+        }
+    }
+
+    // Walks back and forth around the spawn point, away from every object
+    static void run(String label, int iterations, Player player, keyHandler keys) {
+        long sink = 0;
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int phase = (i / 60) & 3;
+            keys.rightPressed = phase == 0;
+            keys.leftPressed = phase == 1;
+            keys.downPressed = phase == 2;
+            keys.upPressed = phase == 3;
+            player.update();
+            sink += player.sprites[player.direction][player.spriteNum - 1].getWidth();
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+        report(label, iterations, nanos, bytes, sink);
+    }
+
+    // Direction dispatch alone: table lookups vs switching on the String direction
+    static void runDispatch(int iterations, Player player) {
+        long sink = 0;
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int direction = (i >> 4) & 3;
+            int spriteNum = 1 + ((i >> 3) & 1);
+            BufferedImage image = player.sprites[direction][spriteNum - 1];
+            sink += entity.DX[direction] * 4 + entity.DY[direction] * 4 + image.getWidth();
+        }
+        report("dispatch, tables", iterations, System.nanoTime() - start,
+                threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes, sink);
+
+        bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String direction = NAMES[(i >> 4) & 3];
+            int spriteNum = 1 + ((i >> 3) & 1);
+            sink += legacyStep(player, direction, spriteNum);
+        }
+        report("dispatch, String", iterations, System.nanoTime() - start,
+                threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes, sink);
+    }
+
+    static int legacyStep(Player player, String direction, int spriteNum) {
+        int dx = 0, dy = 0;
+        switch (direction) {
+            case "up": dy = -4; break;
+            case "down": dy = 4; break;
+            case "left": dx = -4; break;
+            case "right": dx = 4; break;
+        }
+        BufferedImage image = null;
+        switch (direction) {
+            case "up": image = spriteNum == 1 ? player.sprites[0][0] : player.sprites[0][1]; break;
+            case "down": image = spriteNum == 1 ? player.sprites[1][0] : player.sprites[1][1]; break;
+            case "left": image = spriteNum == 1 ? player.sprites[2][0] : player.sprites[2][1]; break;
+            case "right": image = spriteNum == 1 ? player.sprites[3][0] : player.sprites[3][1]; break;
+        }
+        return dx + dy + image.getWidth();
+    }
+
+    static void report(String label, int iterations, long nanos, long bytes, long sink) {
+        System.out.printf("%-24s %8.2f ns/op %8.3f bytes/op   (%d)%n", label,
+                (double) nanos / iterations, (double) bytes / iterations, sink & 0xff);
+    }
+}
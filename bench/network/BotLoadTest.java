@@ -0,0 +1,205 @@
+package network;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+import main.Server;
+import util.Histogram;
+
+// Load test of the real network stack: N bots, each with its own NetworkManager, on
+// loopback inside this JVM, walking in circles and picking things up. For each N it
+// reports update delivery latency, traffic, threads (all live ones, and the critical
+// section task threads), the wait for a pickup (the critical section in a mesh, the
+// server round trip in a star) and the outbound queues (largest backlog of any peer,
+// frames dropped).
+// No GUI and no network beyond loopback.
+// Run: java -Djava.awt.headless=true -cp bin:res network.BotLoadTest [star|mesh] [2,10,50,100] [seconds] [spread]
+// where spread is the distance in tiles between the bots' circles, laid out 10 to a
+// row (default 0: all on the same spot, so area of interest filtering never applies).
+public class BotLoadTest {
+    static final int BASE_PORT = 9000;
+    static final int SEND_RATE = Integer.getInteger("game.net.sendRate", 15);
+    static final long PICKUP_INTERVAL = 2000000000L;
+    static final int OBJECTS = 8;
+    static final int TILE = 48;
+    static int spread;
+
+    static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // Shared by every bot of a run
+    static final Histogram latency = new Histogram();
+    static final Histogram pickupWait = new Histogram();
+    static final LongAdder updates = new LongAdder();
+
+    static class Bot implements NetworkManager.GameStateCallback {
+        final int id;
+        final NetworkManager manager;
+        final GameState state = new GameState();
+        volatile long pickupStart;
+
+        Bot(int id, int port) {
+            this.id = id;
+            this.manager = new NetworkManager(id, port, this);
+            // Same area as a game window (16x12 tiles) with the default 4 tile margin
+            manager.setInterestArea((8 + 4) * TILE, (6 + 4) * TILE);
+            state.hasPlayer = true;
+            state.playerId = id;
+        }
+
+        @Override
+        public void onGameStateUpdate(GameState received) {
+            if (received.hasPlayer) {
+                int delay = (int) (System.nanoTime() / 1000000) - received.sentAt;
+                latency.record(delay * 1000000L);
+                updates.increment();
+            }
+        }
+
+        @Override
+        public void onPickupResult(int index, boolean granted) {
+            pickupWait.record(System.nanoTime() - pickupStart);
+        }
+
+        // Walks a circle of its own; every bot is at a different point of it
+        void tick(long tick, boolean star) {
+            double angle = (tick + id * 7) * 0.05;
+            state.worldX = (23 + id % 10 * spread) * TILE + (int) (Math.cos(angle) * 200);
+            state.worldY = (21 + id / 10 * spread) * TILE + (int) (Math.sin(angle) * 200);
+            state.direction = (int) (tick / 20 + id) & 3;
+            state.spriteNum = 1 + (int) (tick / 12 & 1);
+            manager.broadcastGameState(state);
+        }
+
+        void pickUp(boolean star) {
+            int index = id % OBJECTS;
+            pickupStart = System.nanoTime();
+            if (star) {
+                manager.requestPickup(index);
+            } else {
+                manager.requestCriticalSection(index, () -> pickupWait.record(System.nanoTime() - pickupStart));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean star = args.length == 0 || !"mesh".equals(args[0]);
+        String counts = args.length > 1 ? args[1] : "2,10,50,100";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        spread = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        System.out.printf("%s topology, %d Hz updates, %d s per step, bots %d tiles apart%n", star ? "star" : "mesh",
+                SEND_RATE, seconds, spread);
+        System.out.printf("%5s %10s %8s %8s %8s %10s %10s %12s %8s %6s %9s %9s %7s %7s %7s%n", "bots",
+                "updates/s", "p50 ms", "p99 ms", "max ms", "msgs/s", "KB/s", "KB/s/bot out", "threads", "tasks", "pick p50",
+                "pick p99", "heap MB", "q KB", "dropped");
+        String[] steps = counts.split(",");
+        for (int step = 0; step < steps.length; step++) {
+            run(Integer.parseInt(steps[step].trim()), star, seconds, BASE_PORT + step * 1000);
+        }
+        System.exit(0);
+    }
+
+    static void run(int count, boolean star, int seconds, int basePort) throws Exception {
+        Server server = null;
+        if (star) {
+            server = new Server(basePort, 0);
+            server.start();
+            Thread serverThread = new Thread(server::run, "server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+        Bot[] bots = new Bot[count];
+        for (int i = 0; i < count; i++) {
+            bots[i] = new Bot(i + 1, basePort + 1 + i);
+            bots[i].manager.start();
+        }
+        for (int i = 0; i < count; i++) {
+            if (star) {
+                bots[i].manager.connectToPeer("localhost", basePort, 0);
+            } else {
+                for (int j = 0; j < i; j++) {
+                    bots[i].manager.connectToPeer("localhost", basePort + 1 + j, j + 1);
+                }
+            }
+        }
+        Thread.sleep(500 + count * 5L);
+
+        // One driver thread ticks every bot, like the game loops would
+        long[] counters = new long[3];
+        long interval = 1000000000L / SEND_RATE;
+        long start = System.nanoTime();
+        long warmupEnd = start + 1000000000L;
+        long end = warmupEnd + seconds * 1000000000L;
+        boolean measuring = false;
+        int peakThreads = 0;
+        int peakTasks = 0;
+        for (long tick = 0; ; tick++) {
+            long now = System.nanoTime();
+            if (!measuring && now >= warmupEnd) {
+                latency.reset();
+                pickupWait.reset();
+                updates.reset();
+                counters = traffic(bots, server);
+                measuring = true;
+            }
+            if (now >= end) {
+                break;
+            }
+            for (Bot bot : bots) {
+                bot.tick(tick, star);
+            }
+            // Each bot picks something up every PICKUP_INTERVAL, spread over it
+            long ticksPerPickup = PICKUP_INTERVAL / interval;
+            for (int i = (int) (tick % ticksPerPickup); i < count; i += ticksPerPickup) {
+                bots[i].pickUp(star);
+            }
+            peakThreads = Math.max(peakThreads, threads.getThreadCount());
+            peakTasks = Math.max(peakTasks, NetworkThreads.taskThreads());
+            long next = start + (tick + 1) * interval;
+            while ((now = System.nanoTime()) < next) {
+                Thread.sleep(Math.max(0, (next - now) / 1000000), (int) ((next - now) % 1000000));
+            }
+        }
+        long[] after = traffic(bots, server);
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("%5d %10.0f %8.1f %8.1f %8.1f %10.0f %10.1f %12.2f %8d %6s %9.2f %9.2f %7d %7.1f %7d%n", count,
+                updates.sum() / (double) seconds, latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.max() / 1e6, (after[0] - counters[0]) / (double) seconds,
+                (after[1] - counters[1]) / 1024.0 / seconds, (after[2] - counters[2]) / 1024.0 / seconds / count,
+                peakThreads, NetworkThreads.VIRTUAL ? "virt" : String.valueOf(peakTasks), pickupWait.percentile(0.50) / 1e6, pickupWait.percentile(0.99) / 1e6,
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, after[3] / 1024.0, after[4] - counters[4]);
+
+        for (Bot bot : bots) {
+            bot.manager.shutdown();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+        Thread.sleep(500);
+    }
+
+    // Messages and bytes sent so far by every NetworkManager of the run, bytes sent by the
+    // bots alone, the largest outbound backlog of any peer and the frames dropped
+    static long[] traffic(Bot[] bots, Server server) {
+        long messages = 0;
+        long botBytes = 0;
+        long peakQueued = 0;
+        long dropped = 0;
+        for (Bot bot : bots) {
+            messages += bot.manager.getMessagesSent();
+            botBytes += bot.manager.getBytesSent();
+            peakQueued = Math.max(peakQueued, bot.manager.getPeakQueuedBytes());
+            dropped += bot.manager.getFramesDropped();
+        }
+        long bytes = botBytes;
+        if (server != null) {
+            NetworkManager manager = server.getNetworkManager();
+            messages += manager.getMessagesSent();
+            bytes += manager.getBytesSent();
+            peakQueued = Math.max(peakQueued, manager.getPeakQueuedBytes());
+            dropped += manager.getFramesDropped();
+        }
+        return new long[] {messages, bytes, botBytes, peakQueued, dropped};
+    }
+}
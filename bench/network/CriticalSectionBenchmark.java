@@ -0,0 +1,94 @@
+package network;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Histogram;
+
+// Acquisitions per second and entry latency of the distributed critical sections, with
+// peers on loopback asking back to back.
+// Run: java -cp bin network.CriticalSectionBenchmark [peers] [seconds] [contenders] [keys]
+// where contenders is how many of the peers keep asking (default all of them) and
+// contender i locks key i % keys (default 1: everyone contends for the same key).
+public class CriticalSectionBenchmark {
+    static final int BASE_PORT = 7100;
+    // Entries that found another peer already inside; anything but 0 fails the run
+    static final AtomicLong violations = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int contenders = args.length > 2 ? Integer.parseInt(args[2]) : peers;
+        int keys = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        NetworkManager[] managers = new NetworkManager[peers];
+        for (int i = 0; i < peers; i++) {
+            managers[i] = new NetworkManager(i + 1, BASE_PORT + i, null);
+            managers[i].start();
+        }
+        for (int i = 0; i < peers; i++) {
+            for (int j = 0; j < i; j++) {
+                managers[i].connectToPeer("localhost", BASE_PORT + j, j + 1);
+            }
+        }
+        Thread.sleep(500);
+
+        // Warm up, then measure
+        run(managers, contenders, keys, 1, new Histogram());
+        Histogram latency = new Histogram();
+        long acquisitions = run(managers, contenders, keys, seconds, latency);
+        System.out.printf("%d peers, %d asking, %d keys: %.0f acquisitions/s, latency p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+                peers, contenders, keys, acquisitions / (double) seconds, latency.percentile(0.50) / 1e6,
+                latency.percentile(0.99) / 1e6, latency.max() / 1e6);
+
+        for (NetworkManager manager : managers) {
+            manager.shutdown();
+        }
+        if (violations.get() > 0) {
+            System.err.println(violations.get() + " entries found another peer in the critical section");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    static long run(NetworkManager[] managers, int contenders, int keys, int seconds, Histogram latency)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        AtomicBoolean[] inside = new AtomicBoolean[keys];
+        for (int k = 0; k < keys; k++) {
+            inside[k] = new AtomicBoolean();
+        }
+        AtomicLong acquisitions = new AtomicLong();
+        Thread[] threads = new Thread[contenders];
+        for (int i = 0; i < contenders; i++) {
+            NetworkManager manager = managers[i];
+            int key = i % keys;
+            threads[i] = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    CountDownLatch done = new CountDownLatch(1);
+                    long start = System.nanoTime();
+                    manager.requestCriticalSection(key, () -> {
+                        latency.record(System.nanoTime() - start);
+                        if (!inside[key].compareAndSet(false, true)) {
+                            violations.incrementAndGet();
+                            return;
+                        }
+                        inside[key].set(false);
+                        acquisitions.incrementAndGet();
+                    }).whenComplete((result, error) -> done.countDown());
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return acquisitions.get();
+    }
+}
@@ -0,0 +1,92 @@
+package network;
+
+import java.lang.management.ManagementFactory;
+
+// Allocation on the receive path: one NetworkManager floods another on loopback with
+// position updates (UDP) and object snapshots (TCP), and the bytes allocated by the
+// receiver's selector thread are divided by the frames it took in. That thread does
+// all of the receiving: reading, decoding, handling, the callback and the ACKs back.
+// Run: java -cp bin network.ReceivePathBenchmark [seconds]
+public class ReceivePathBenchmark {
+    static final int BASE_PORT = 7300;
+    static final int OBJECTS = 100;
+
+    static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Reads what a game would, so nothing is optimized away
+    static class Sink implements NetworkManager.GameStateCallback {
+        long sum;
+
+        @Override
+        public void onGameStateUpdate(GameState state) {
+            if (state.hasPlayer) {
+                sum += state.worldX + state.worldY + state.direction + state.spriteNum;
+            }
+            for (int w = 0; w < state.getChangedWordCount(); w++) {
+                sum += state.getChangedWord(w);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        Sink sink = new Sink();
+        NetworkManager sender = new NetworkManager(1, BASE_PORT, null);
+        NetworkManager receiver = new NetworkManager(2, BASE_PORT + 1, sink);
+        sender.start();
+        receiver.start();
+        sender.connectToPeer("localhost", BASE_PORT + 1, 2);
+        Thread.sleep(500);
+        Thread selector = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("network-selector-2")) {
+                selector = thread;
+            }
+        }
+        if (selector == null) {
+            throw new IllegalStateException("No selector thread for the receiver");
+        }
+
+        GameState state = new GameState();
+        state.hasPlayer = true;
+        state.playerId = 1;
+        state.setObjectCount(OBJECTS);
+        for (int o = 0; o < OBJECTS; o++) {
+            state.setPresent(o);
+        }
+        send(sender, state, 1);
+        long bytes = threads.getThreadAllocatedBytes(selector.getId());
+        long frames = receiver.getMessagesReceived();
+        long malformed = receiver.getMalformedFrames();
+        send(sender, state, seconds);
+        // Let the last frames arrive
+        Thread.sleep(200);
+        long allocated = threads.getThreadAllocatedBytes(selector.getId()) - bytes;
+        frames = receiver.getMessagesReceived() - frames;
+        System.out.printf("%d frames received, %.0f/s, %.1f alloc bytes/frame, %d malformed (checksum %d)%n", frames,
+                frames / (double) seconds, (double) allocated / frames, receiver.getMalformedFrames() - malformed,
+                sink.sum & 0xff);
+
+        sender.shutdown();
+        receiver.shutdown();
+        System.exit(0);
+    }
+
+    // As fast as the receiver keeps up with, yielding now and then so it can
+    static void send(NetworkManager sender, GameState state, int seconds) throws InterruptedException {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        for (int i = 0; System.nanoTime() < end; i++) {
+            state.worldX = 1104 + (i & 63);
+            state.worldY = 1008 + (i & 31);
+            state.direction = i & 3;
+            state.spriteNum = 1 + (i & 1);
+            // One object goes away and comes back, so every other snapshot is a delta
+            state.objectsPresent[i & 1] ^= 1L << (i & 63);
+            sender.broadcastGameState(state);
+            if ((i & 15) == 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
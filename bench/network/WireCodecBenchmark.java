@@ -0,0 +1,133 @@
+package network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+// Bytes, time and allocation per GAME_STATE update: the binary WireCodec against the
+// previous path (text payload built like serializeGameState, sent through one
+// long-lived ObjectOutputStream).
+// Run: java -cp bin network.WireCodecBenchmark
+public class WireCodecBenchmark {
+    static final int OBJECTS = 10;
+    static final int WARMUP = 100000;
+    static final int ITERATIONS = 1000000;
+
+    static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Shape of the old serialized message
+    static class LegacyMessage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        MessageType type;
+        int senderId;
+        int timestamp;
+        String data;
+
+        LegacyMessage(MessageType type, int senderId, int timestamp, String data) {
+            this.type = type;
+            this.senderId = senderId;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int round = 0; round < 3; round++) {
+            legacy(round == 0 ? WARMUP : ITERATIONS);
+            binary(round == 0 ? WARMUP : ITERATIONS);
+        }
+    }
+
+    static void legacy(int iterations) throws IOException {
+        CountingStream sink = new CountingStream();
+        ObjectOutputStream out = new ObjectOutputStream(sink);
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("PLAYER:").append(1).append(",").append(1104 + (i & 7)).append(",")
+                    .append(1008).append(",").append("down").append(",").append(1 + (i & 1));
+            sb.append("|OBJECTS:");
+            for (int o = 0; o < OBJECTS; o++) {
+                sb.append(o).append(":").append(o < 8 ? "Key" : "null").append(";");
+            }
+            out.writeObject(new LegacyMessage(MessageType.GAME_STATE, 1, i, sb.toString()));
+            out.flush();
+            // The old stream was never reset; resetting here keeps the handle table from
+            // growing without bound during the run, and costs a few bytes per message.
+            if ((i & 1023) == 0) {
+                out.reset();
+            }
+        }
+        report("ObjectOutputStream+text", iterations, System.nanoTime() - start,
+                threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes, sink.count);
+    }
+
+    static void binary(int iterations) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        GameState state = new GameState();
+        GameState decoded = new GameState();
+        Snapshot decodedSnapshot = new Snapshot();
+        SnapshotHistory sent = new SnapshotHistory();
+        long total = 0;
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            state.playerId = 1;
+            state.worldX = 1104 + (i & 7);
+            state.worldY = 1008;
+            state.direction = 1;
+            state.spriteNum = 1 + (i & 1);
+            state.setObjectCount(OBJECTS);
+            for (int o = 0; o < 8; o++) {
+                state.setPresent(o);
+            }
+            // Worst case for the objects: one changes every update, so every update
+            // carries a one-word delta against the previous snapshot
+            if ((i & 1) != 0) {
+                state.objectsPresent[0] &= ~1L;
+            }
+            Snapshot baseline = sent.latest();
+            Snapshot snapshot = sent.put(i, state.objectCount, state.objectsPresent);
+
+            // A position update and the object state, as broadcastGameState sends them
+            buffer.clear();
+            WireCodec.encode(new Message(MessageType.PLAYER, 1, i, state, i), buffer);
+            int objectsStart = buffer.position();
+            WireCodec.encode(new Message(MessageType.GAME_STATE, 1, i, snapshot, baseline), buffer);
+            total += buffer.position();
+
+            // Skip the length prefixes and headers, as the receiver does after reading them
+            buffer.flip();
+            buffer.position(4 + WireCodec.HEADER_BYTES + 4);
+            WireCodec.decodePlayer(buffer, decoded);
+            buffer.position(objectsStart + 4 + WireCodec.HEADER_BYTES);
+            WireCodec.decodeSnapshot(buffer, decodedSnapshot);
+        }
+        report("WireCodec", iterations, System.nanoTime() - start,
+                threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes, total);
+    }
+
+    static void report(String label, int iterations, long nanos, long allocated, long wireBytes) {
+        System.out.printf("%-24s %7.1f bytes/update %8.1f ns/update %8.1f alloc bytes/update%n", label,
+                (double) wireBytes / iterations, (double) nanos / iterations, (double) allocated / iterations);
+    }
+
+    static class CountingStream extends ByteArrayOutputStream {
+        long count;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+    }
+}
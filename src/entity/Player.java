@@ -5,7 +5,7 @@ import java.awt.Graphics2D;
 import java.io.IOException;
 import java.awt.image.BufferedImage;
 import java.awt.Rectangle;
-import javax.imageio.ImageIO;
+import main.UtilityTool;
 import main.gamePanel;
 import main.keyHandler;
 
@@ -14,7 +14,7 @@ public class Player extends entity {
     keyHandler keyH;
     public final int screenX;
     public final int screenY;
-    int hasKey = 0;
+    public int hasKey = 0;
 
     public Player(gamePanel gp, keyHandler keyH) {
         this.gp = gp;
@@ -36,14 +36,14 @@ public class Player extends entity {
     
     public void getPlayerImage() {
         try {
-            up1 = ImageIO.read(getClass().getResourceAsStream("/player/walkUp1-02.png"));
-            up2 = ImageIO.read(getClass().getResourceAsStream("/player/walkUp2-02.png"));
-            right1 = ImageIO.read(getClass().getResourceAsStream("/player/idleRight-02.png"));
-            right2 = ImageIO.read(getClass().getResourceAsStream("/player/walkRight-02.png"));
-            left1 = ImageIO.read(getClass().getResourceAsStream("/player/idleLeft.png"));
-            left2 = ImageIO.read(getClass().getResourceAsStream("/player/walkLeft-02.png"));
-            down1 = ImageIO.read(getClass().getResourceAsStream("/player/walk_without_wepons_down_1-02.png"));
-            down2 = ImageIO.read(getClass().getResourceAsStream("/player/walk_without_wepons_down_2-02.png"));
+            sprites[UP][0] = UtilityTool.loadImage("/player/walkUp1-02.png", 33, 43);
+            sprites[UP][1] = UtilityTool.loadImage("/player/walkUp2-02.png", 33, 43);
+            sprites[RIGHT][0] = UtilityTool.loadImage("/player/idleRight-02.png", 33, 43);
+            sprites[RIGHT][1] = UtilityTool.loadImage("/player/walkRight-02.png", 33, 43);
+            sprites[LEFT][0] = UtilityTool.loadImage("/player/idleLeft.png", 33, 43);
+            sprites[LEFT][1] = UtilityTool.loadImage("/player/walkLeft-02.png", 33, 43);
+            sprites[DOWN][0] = UtilityTool.loadImage("/player/walk_without_wepons_down_1-02.png", 33, 43);
+            sprites[DOWN][1] = UtilityTool.loadImage("/player/walk_without_wepons_down_2-02.png", 33, 43);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -53,7 +53,8 @@ public class Player extends entity {
         worldX = gp.tileSize * 23;
         worldY = gp.tileSize * 21;
         speed = 4;
-        direction = "down";
+        direction = DOWN;
+        savePosition();
     }
 
     public void update() {
@@ -61,93 +62,62 @@ public class Player extends entity {
             keyH.leftPressed == true || keyH.rightPressed == true) {
             
             if (keyH.upPressed == true) {
-                direction = "up";
+                direction = UP;
             }
             if (keyH.downPressed == true) {
-                direction = "down";
+                direction = DOWN;
             }
             if (keyH.leftPressed == true) {
-                direction = "left";
+                direction = LEFT;
             }
             if (keyH.rightPressed == true) {
-                direction = "right";
+                direction = RIGHT;
             }
             
             // CHECK TILE COLLISION
+            computeStep(gp.tickRate);
             collisionOn = false;
             gp.cChecker.chekTile(this);
             
             // CHECK OBJECT COLLISION
             int objectIndex = gp.cChecker.checkObject(this, true);
-            pickUpObject(objectIndex);
+            gp.touchObject(this, objectIndex);
             
             // IF COLLISION IS FALSE, PLAYER CAN MOVE 
             if (collisionOn == false) {
-                switch (direction) {
-                    case "up":
-                        worldY -= speed;
-                        break;
-                    case "down":
-                        worldY += speed;
-                        break;
-                    case "left":
-                        worldX -= speed;
-                        break;
-                    case "right":
-                        worldX += speed;
-                        break;
-                }
+                worldX += DX[direction] * step;
+                worldY += DY[direction] * step;
             }
             
-            spriteCounter++;
-            if (spriteCounter > 12) {
-                if (spriteNum == 1) {
-                    spriteNum = 2;
-                } else if (spriteNum == 2) {
-                    spriteNum = 1;
-                }
-                spriteCounter = 0;
+            // THE SPRITE FLIPS EVERY 13/60 S: spriteCounter COUNTS IN 1/(60 * tickRate) S
+            spriteCounter += 60;
+            if (spriteCounter >= 13 * gp.tickRate) {
+                // 1 <-> 2
+                spriteNum = 3 - spriteNum;
+                spriteCounter -= 13 * gp.tickRate;
             }
         }
     }
 
     public void draw(Graphics2D g2) {
-        BufferedImage image = null;
-        switch (direction) {
-            case "up":
-                if (spriteNum == 1) {
-                    image = up1;
-                }
-                if (spriteNum == 2) {
-                    image = up2;
-                }
-                break;
-            case "down":
-                if (spriteNum == 1) {
-                    image = down1;
-                }
-                if (spriteNum == 2) {
-                    image = down2;
-                }
-                break;
-            case "left":
-                if (spriteNum == 1) {
-                    image = left1;
-                }
-                if (spriteNum == 2) {
-                    image = left2;
-                }
-                break;
-            case "right":
-                if (spriteNum == 1) {
-                    image = right1;
-                }
-                if (spriteNum == 2) {
-                    image = right2;
-                }
-                break;
+        BufferedImage image = sprites[direction][spriteNum - 1];
+        g2.drawImage(image, screenX, screenY, null);
+    }
+    
+    // Lockstep: the keys are the tick's input rather than the keyboard
+    public void setKeyHandler(keyHandler keyH) {
+        this.keyH = keyH;
+    }
+    
+    // Lockstep: another player simulated here, drawn where it stands relative to viewer
+    public void drawRelativeTo(Graphics2D g2, Player viewer, int playerId) {
+        int x = viewer.screenX - viewer.renderX + renderX;
+        int y = viewer.screenY - viewer.renderY + renderY;
+        if (x + gp.tileSize > 0 && x < gp.screenWidth && y + gp.tileSize > 0 && y < gp.screenHeight) {
+            g2.drawImage(sprites[direction][spriteNum - 1], x, y, null);
+            g2.setColor(Color.WHITE);
+            g2.drawString("P" + playerId, x + 8, y - 5);
         }
-        g2.drawImage(image, screenX, screenY, 33, 43, null);
     }
     
     public void pickUpObject(int index) {
@@ -158,13 +128,13 @@ public class Player extends entity {
                 case "Key":
                     gp.playSE(1);
                     hasKey++;
-                    gp.obj[index] = null;
+                    gp.removeObject(index);
                     System.out.println("Key: " + hasKey);
                     break;
                 case "Door":
                     if (hasKey > 0) {
                         gp.playSE(3);
-                        gp.obj[index] = null;
+                        gp.removeObject(index);
                         hasKey--;
                         System.out.println("Key: " + hasKey);
                     }
@@ -172,7 +142,7 @@ public class Player extends entity {
                 case "Boots":
                     gp.playSE(2);
                     speed += 1;
-                    gp.obj[index] = null;
+                    gp.removeObject(index);
                     break;
             }
         }
@@ -4,8 +4,9 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import javax.imageio.ImageIO;
+import main.UtilityTool;
 import main.gamePanel;
+import network.RemoteState;
 
 public class RemotePlayer extends entity {
     gamePanel gp;
@@ -13,10 +14,26 @@ public class RemotePlayer extends entity {
     private long lastUpdateTime;
     private static final long TIMEOUT = 1000; // 5 seconds timeout
     
+    // JITTER BUFFER
+    // Received states are drawn INTERP_DELAY ms in the past (sender clock), between the
+    // two that surround that moment, so late or uneven packets don't show as stutter.
+    // Past the newest state the motion is carried on for at most MAX_EXTRAPOLATION ms.
+    static final int INTERP_DELAY = Integer.getInteger("game.net.interpDelay", 150);
+    static final int MAX_EXTRAPOLATION = Integer.getInteger("game.net.extrapolate", 100);
+    private static final int BUFFER_SIZE = 32;
+    private final RemoteState[] states = new RemoteState[BUFFER_SIZE];
+    private int newest = -1, stateCount = 0;
+    // Local clock minus sender clock, for the fastest packet lately (ms)
+    private long clockOffset;
+    private int renderDirection = DOWN, renderSpriteNum = 1;
+    
     public RemotePlayer(gamePanel gp, int playerId) {
         this.gp = gp;
         this.playerId = playerId;
         this.lastUpdateTime = System.currentTimeMillis();
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            states[i] = new RemoteState(0, 0, 0);
+        }
         
         setDefaultValues();
         getPlayerImage();
@@ -26,31 +43,113 @@ public class RemotePlayer extends entity {
         worldX = gp.tileSize * 23;
         worldY = gp.tileSize * 21;
         speed = 4;
-        direction = "down";
+        direction = DOWN;
+        savePosition();
     }
     
     public void getPlayerImage() {
         try {
             // Use same images as local player (or create different colored versions)
-            up1 = ImageIO.read(getClass().getResourceAsStream("/player/walkUp1-02.png"));
-            up2 = ImageIO.read(getClass().getResourceAsStream("/player/walkUp2-02.png"));
-            right1 = ImageIO.read(getClass().getResourceAsStream("/player/idleRight-02.png"));
-            right2 = ImageIO.read(getClass().getResourceAsStream("/player/walkRight-02.png"));
-            left1 = ImageIO.read(getClass().getResourceAsStream("/player/idleLeft.png"));
-            left2 = ImageIO.read(getClass().getResourceAsStream("/player/walkLeft-02.png"));
-            down1 = ImageIO.read(getClass().getResourceAsStream("/player/walk_without_wepons_down_1-02.png"));
-            down2 = ImageIO.read(getClass().getResourceAsStream("/player/walk_without_wepons_down_2-02.png"));
+            sprites[UP][0] = UtilityTool.loadImage("/player/walkUp1-02.png", 33, 43);
+            sprites[UP][1] = UtilityTool.loadImage("/player/walkUp2-02.png", 33, 43);
+            sprites[RIGHT][0] = UtilityTool.loadImage("/player/idleRight-02.png", 33, 43);
+            sprites[RIGHT][1] = UtilityTool.loadImage("/player/walkRight-02.png", 33, 43);
+            sprites[LEFT][0] = UtilityTool.loadImage("/player/idleLeft.png", 33, 43);
+            sprites[LEFT][1] = UtilityTool.loadImage("/player/walkLeft-02.png", 33, 43);
+            sprites[DOWN][0] = UtilityTool.loadImage("/player/walk_without_wepons_down_1-02.png", 33, 43);
+            sprites[DOWN][1] = UtilityTool.loadImage("/player/walk_without_wepons_down_2-02.png", 33, 43);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
     
-    public void updatePosition(int worldX, int worldY, String direction, int spriteNum) {
+    // Called from the network thread; sentAt is the sender's clock in ms
+    public synchronized void updatePosition(int worldX, int worldY, int direction, int spriteNum, int sentAt) {
         this.worldX = worldX;
         this.worldY = worldY;
-        this.direction = direction;
-        this.spriteNum = spriteNum;
+        // Values come off the wire: keep them inside the sprite table
+        this.direction = direction & 3;
+        this.spriteNum = spriteNum == 2 ? 2 : 1;
         this.lastUpdateTime = System.currentTimeMillis();
+        
+        long now = System.nanoTime() / 1000000;
+        long time = sentAt;
+        if (stateCount > 0) {
+            // Unwrap the 32 bit clock against the newest state; older ones were dropped upstream
+            long last = states[newest].time;
+            time = last + (sentAt - (int) last);
+            if (time <= last) {
+                return;
+            }
+            // The offset follows the quickest packet, creeping up 1 ms per update so
+            // it can follow a route that got slower
+            clockOffset = Math.min(clockOffset + 1, now - time);
+        } else {
+            clockOffset = now - time;
+        }
+        newest = (newest + 1) % BUFFER_SIZE;
+        RemoteState state = states[newest];
+        state.x = worldX;
+        state.y = worldY;
+        state.time = time;
+        state.direction = this.direction;
+        state.spriteNum = this.spriteNum;
+        stateCount = Math.min(stateCount + 1, BUFFER_SIZE);
+    }
+    
+    // Remote players ignore the tick alpha: their render position comes from the
+    // jitter buffer at the current render time
+    @Override
+    public synchronized void interpolate(double alpha) {
+        if (stateCount == 0) {
+            super.interpolate(alpha);
+            return;
+        }
+        long renderTime = System.nanoTime() / 1000000 - clockOffset - INTERP_DELAY;
+        
+        // Newest state at or before renderTime, walking back from the newest
+        int after = -1;
+        int index = newest;
+        for (int n = 0; n < stateCount; n++) {
+            RemoteState state = states[index];
+            if (state.time <= renderTime) {
+                if (after < 0) {
+                    extrapolate(index, renderTime);
+                } else {
+                    blend(state, states[after], renderTime);
+                }
+                return;
+            }
+            after = index;
+            index = (index + BUFFER_SIZE - 1) % BUFFER_SIZE;
+        }
+        // Everything is still in the future: hold the oldest state
+        show(states[after], states[after].x, states[after].y);
+    }
+    
+    private void blend(RemoteState from, RemoteState to, long renderTime) {
+        float t = (float) (renderTime - from.time) / (to.time - from.time);
+        show(from, from.x + (to.x - from.x) * t, from.y + (to.y - from.y) * t);
+    }
+    
+    // Past the newest state: keep going at the last known velocity, for a while
+    private void extrapolate(int index, long renderTime) {
+        RemoteState last = states[index];
+        if (stateCount < 2) {
+            show(last, last.x, last.y);
+            return;
+        }
+        RemoteState previous = states[(index + BUFFER_SIZE - 1) % BUFFER_SIZE];
+        long ahead = Math.min(renderTime - last.time, MAX_EXTRAPOLATION);
+        float perMs = 1f / (last.time - previous.time);
+        show(last, last.x + (last.x - previous.x) * perMs * ahead, last.y + (last.y - previous.y) * perMs * ahead);
+    }
+    
+    private void show(RemoteState state, float x, float y) {
+        renderX = Math.round(x);
+        renderY = Math.round(y);
+        renderDirection = state.direction;
+        renderSpriteNum = state.spriteNum;
     }
     
     public boolean isActive() {
@@ -58,32 +157,17 @@ public class RemotePlayer extends entity {
     }
     
     public void draw(Graphics2D g2, int screenX, int screenY) {
-        BufferedImage image = null;
-        
-        switch (direction) {
-            case "up":
-                image = (spriteNum == 1) ? up1 : up2;
-                break;
-            case "down":
-                image = (spriteNum == 1) ? down1 : down2;
-                break;
-            case "left":
-                image = (spriteNum == 1) ? left1 : left2;
-                break;
-            case "right":
-                image = (spriteNum == 1) ? right1 : right2;
-                break;
-        }
+        BufferedImage image = sprites[renderDirection][renderSpriteNum - 1];
         
         // Calculate screen position relative to local player
-        int screenPosX = screenX - gp.player.worldX + worldX;
-        int screenPosY = screenY - gp.player.worldY + worldY;
+        int screenPosX = screenX - gp.player.renderX + renderX;
+        int screenPosY = screenY - gp.player.renderY + renderY;
         
         // Only draw if on screen
         if (screenPosX + gp.tileSize > 0 && screenPosX < gp.screenWidth &&
             screenPosY + gp.tileSize > 0 && screenPosY < gp.screenHeight) {
             
-            g2.drawImage(image, screenPosX, screenPosY, 33, 43, null);
+            g2.drawImage(image, screenPosX, screenPosY, null);
             
             // Draw player ID above the remote player
             g2.setColor(Color.WHITE);
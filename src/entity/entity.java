@@ -3,9 +3,23 @@ import java.awt.image.BufferedImage;
 import java.awt.Rectangle;
 public class entity {
 public int worldX,worldY;
+// POSITION AT THE PREVIOUS SIMULATION TICK AND THE BLENDED ONE USED FOR DRAWING
+public int prevWorldX,prevWorldY;
+public int renderX,renderY;
+// PIXELS PER 1/60 S, WHATEVER THE TICK RATE; step IS WHAT THAT COMES TO THIS TICK
 public int speed;
-public BufferedImage up1,up2,down1,down2,left1,left2,right1,right2;
-public String direction;
+public int step;
+// SIXTIETHS OF A PIXEL NOT MOVED YET, CARRIED OVER SO ODD TICK RATES KEEP THE SAME SPEED
+public int stepRemainder;
+// DIRECTION CODES, ALSO USED AS INDEXES IN THE TABLES BELOW AND SENT AS IS OVER THE NETWORK
+public static final int UP = 0, DOWN = 1, LEFT = 2, RIGHT = 3;
+// ONE STEP IN EACH DIRECTION, MULTIPLIED BY speed
+public static final int[] DX = {0, 0, -1, 1};
+public static final int[] DY = {-1, 1, 0, 0};
+
+// sprites[direction][spriteNum - 1]
+public BufferedImage[][] sprites = new BufferedImage[4][2];
+public int direction;
 
 public int spriteCounter =0;
 public int spriteNum =1;
@@ -13,4 +27,22 @@ public int spriteNum =1;
 public Rectangle solidArea;
 public int solidAreadDefaultX,solidAreadDefaultY;
 public boolean collisionOn =false;
+
+// THE STEP FOR ONE TICK AT tickRate TICKS PER SECOND
+public void computeStep(int tickRate) {
+	stepRemainder += speed * 60;
+	step = stepRemainder / tickRate;
+	stepRemainder -= step * tickRate;
+}
+
+public void savePosition() {
+	prevWorldX = worldX;
+	prevWorldY = worldY;
+}
+
+// alpha is how far we are between the last tick (0) and the next one (1)
+public void interpolate(double alpha) {
+	renderX = prevWorldX + (int) Math.round((worldX - prevWorldX) * alpha);
+	renderY = prevWorldY + (int) Math.round((worldY - prevWorldY) * alpha);
+}
 }
@@ -11,40 +11,16 @@ public AssetSetter(gamePanel gp) {
 	this.gp =gp;
 }
  public void setObject() {
-	 gp.obj[0] =  new OBJ_Key();
-	 gp.obj[0].worldX= 23 *gp.tileSize;
-	 gp.obj[0].worldY= 7 *gp.tileSize;
+	 gp.addObject(new OBJ_Key(gp), 23, 7);
+	 gp.addObject(new OBJ_Key(gp), 23, 40);
+	 gp.addObject(new OBJ_Key(gp), 38, 8);
 	 
-	 gp.obj[1] =  new OBJ_Key();
-	 gp.obj[1].worldX= 23 *gp.tileSize;
-	 gp.obj[1].worldY= 40 *gp.tileSize;
+	 gp.addObject(new OBJ_Door(gp), 10, 11);
+	 gp.addObject(new OBJ_Door(gp), 12, 22);
+	 gp.addObject(new OBJ_Door(gp), 8, 28);
 	 
+	 gp.addObject(new OBJ_Chest(gp), 10, 7);
 	 
-	 gp.obj[2] =  new OBJ_Key();
-	 gp.obj[2].worldX= 38 *gp.tileSize;
-	 gp.obj[2].worldY= 8 *gp.tileSize;
-	 
-	 
-	 
-	 gp.obj[3] =  new OBJ_Door();
-	 gp.obj[3].worldX= 10 *gp.tileSize;
-	 gp.obj[3].worldY= 11 *gp.tileSize;
-	 
-	 
-	 gp.obj[4] =  new OBJ_Door();
-	 gp.obj[4].worldX= 12 *gp.tileSize;
-	 gp.obj[4].worldY= 22 *gp.tileSize;
-	 
-	 gp.obj[5] =  new OBJ_Door();
-	 gp.obj[5].worldX= 8 *gp.tileSize;
-	 gp.obj[5].worldY= 28 *gp.tileSize;
-	 
-	 gp.obj[6] =  new OBJ_Chest();
-	 gp.obj[6].worldX= 10 *gp.tileSize;
-	 gp.obj[6].worldY= 7 *gp.tileSize;
-	 
-	 gp.obj[7] =  new OBJ_Boots();
-	 gp.obj[7].worldX= 37 *gp.tileSize;
-	 gp.obj[7].worldY= 42 *gp.tileSize;
+	 gp.addObject(new OBJ_Boots(gp), 37, 42);
  }
 }
@@ -2,10 +2,15 @@ package main;
 
 import javax.swing.text.html.parser.Entity;
 
+import static entity.entity.DX;
+import static entity.entity.DY;
+
 import entity.entity;
+import object.SuperObject;
 
 public class CollisionChecker {
 	gamePanel gp;
+	private int[] nearbyObjects = new int[16];
 	public  CollisionChecker(gamePanel gp) {
 		this.gp =gp;
 	}
@@ -16,119 +21,47 @@ public class CollisionChecker {
 		int entityTopWorldY =entity.worldY +entity.solidArea.y;
 		int entityBottomWorldY = entity.worldY +entity.solidArea.y +entity.solidArea.height;
 		
+		int dx = DX[entity.direction] * entity.step;
+		int dy = DY[entity.direction] * entity.step;
 		
-		int entityLeftCol = entityLeftWorldX/gp.tileSize;
-		int entityRightCol = entityRightWorldX/gp.tileSize;
-		int entityTopRow = entityTopWorldY/gp.tileSize;
-		int entityBottomRow = entityBottomWorldY/gp.tileSize;
-		
-		
-		int tileNum1,tileNum2;
-		
-		switch(entity.direction) {
-		case "up":
-			entityTopRow = (entityTopWorldY -entity.speed)/gp.tileSize;
-			tileNum1 = gp.tileM.mapTileNum[entityLeftCol][entityTopRow];
-			tileNum2 = gp.tileM.mapTileNum[entityRightCol][entityTopRow];
-			if(gp.tileM.tile[tileNum1].collision == true || gp.tileM.tile[tileNum2]
-					.collision == true) {
-				entity.collisionOn =true;
-			}
-			
-			break;
-		case "down":
-		    entityBottomRow = (entityBottomWorldY + entity.speed) / gp.tileSize;
-		    tileNum1 = gp.tileM.mapTileNum[entityLeftCol][entityBottomRow];
-		    tileNum2 = gp.tileM.mapTileNum[entityRightCol][entityBottomRow];
-		    if(gp.tileM.tile[tileNum1].collision == true || gp.tileM.tile[tileNum2].collision == true) {
-		        entity.collisionOn = true;
-		    }
-		    break;
-		case "left":
-			entityLeftCol = (entityLeftWorldX -entity.speed)/gp.tileSize;
-			tileNum1 = gp.tileM.mapTileNum[entityLeftCol][entityTopRow];
-			tileNum2 = gp.tileM.mapTileNum[entityLeftCol][entityBottomRow];
-			if(gp.tileM.tile[tileNum1].collision == true || gp.tileM.tile[tileNum2]
-					.collision == true) {
-				entity.collisionOn =true;
-			}
-			break;
-		case "right":
-			entityRightCol = (entityRightWorldX +entity.speed)/gp.tileSize;
-			tileNum1 = gp.tileM.mapTileNum[entityRightCol][entityTopRow];
-			tileNum2 = gp.tileM.mapTileNum[entityRightCol][entityBottomRow];
-			if(gp.tileM.tile[tileNum1].collision == true || gp.tileM.tile[tileNum2]
-					.collision == true) {
-				entity.collisionOn =true;
-			}
-			break;
+		// SWEPT TEST AGAINST THE COLLISION BITMAP, WORKS FOR ANY SPEED
+		if(gp.tileM.sweepHitsSolid(entityLeftWorldX, entityTopWorldY, entityRightWorldX, entityBottomWorldY, dx, dy)) {
+			entity.collisionOn = true;
 		}
-
 	}
 
 public int checkObject(entity entity,boolean player) {
 	
 	int index = 999;
-	for(int i =0;i<gp.obj.length;i++) {
-		if(gp.obj[i]!=null) {
-			// Get entity's solid area position
-			entity.solidArea.x = entity.worldX+entity.solidArea.x;
-			entity.solidArea.y = entity.worldY +entity.solidArea.y;
-		// Get the object's solid area position  
-		gp.obj[i].solidArea.x = gp.obj[i].worldX +gp.obj[i].solidArea.x;
-		gp.obj[i].solidArea.y = gp.obj[i].worldY +gp.obj[i].solidArea.y;
-switch(entity.direction) {
-case "up" :
-	entity.solidArea.y -= entity.speed;
-	// WE DIDN'T USE INTERSECTR METHOD ON TILES BECAUSE WILL WIL HAVE TO CHECK ON ALL THE TILES IN CONTRAST THE OBKECT ARE ONLY 10 AT MAX 17:00
-	if(entity.solidArea.intersects(gp.obj[i].solidArea)) {
-if(gp.obj[i].collision == true) {
-	entity.collisionOn =true;
-}
-if(player ==true) {
-	index = i;
-}
+	// Entity's solid area after this step, in world coordinates
+	int left = entity.worldX + entity.solidArea.x + DX[entity.direction] * entity.step;
+	int top = entity.worldY + entity.solidArea.y + DY[entity.direction] * entity.step;
+	int right = left + entity.solidArea.width;
+	int bottom = top + entity.solidArea.height;
+
+	// ONLY THE OBJECTS FILED IN THE GRID CELLS AROUND THE ENTITY ARE TESTED
+	int count;
+	while((count = gp.objGrid.query(left, top, right, bottom, nearbyObjects)) > nearbyObjects.length) {
+		nearbyObjects = new int[count * 2];
 	}
-	break;
-case "down" :
-	entity.solidArea.y += entity.speed;
-	if(entity.solidArea.intersects(gp.obj[i].solidArea)) {
-		if(gp.obj[i].collision == true) {
-			entity.collisionOn =true;
-		}
-		if(player ==true) {
-			index = i;
-		}	}
-	break;
-case "left" :
-	entity.solidArea.x -= entity.speed;
-	if(entity.solidArea.intersects(gp.obj[i].solidArea)) {
-		if(gp.obj[i].collision == true) {
-			entity.collisionOn =true;
-		}
-		if(player ==true) {
-			index = i;
-		}	}
-	break;
-case "right" :
-	entity.solidArea.x += entity.speed;
-	if(entity.solidArea.intersects(gp.obj[i].solidArea)) {
-		if(gp.obj[i].collision == true) {
-			entity.collisionOn =true;
+	for(int k = 0; k < count; k++) {
+		int i = nearbyObjects[k];
+		SuperObject object = gp.obj[i];
+		if(object == null) {
+			continue;
 		}
-		if(player ==true) {
-			index = i;
-		}	}
-	break;
-}
-entity.solidArea.x = entity.solidAreadDefaultX;
-entity.solidArea.y = entity.solidAreadDefaultY;
-gp.obj[i].solidArea.x = gp.obj[i].solidAreaDefaultX;
-gp.obj[i].solidArea.y = gp.obj[i].solidAreaDefaultY;
-
-	
+		int objectLeft = object.worldX + object.solidArea.x;
+		int objectTop = object.worldY + object.solidArea.y;
+		if(left < objectLeft + object.solidArea.width && objectLeft < right
+				&& top < objectTop + object.solidArea.height && objectTop < bottom) {
+			if(object.collision == true) {
+				entity.collisionOn = true;
+			}
+			// Keep the highest index when several overlap, as the full scan did
+			if(player == true && (index == 999 || i > index)) {
+				index = i;
+			}
 		}
-		
 	}
 	return index;
 }
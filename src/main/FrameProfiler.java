@@ -0,0 +1,127 @@
+package main;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+import util.Histogram;
+
+// Times the hot sections of a frame. Every sample goes into an all-time histogram
+// (dumped as CSV on exit with -Dgame.profile.csv=<file>) and a one second window
+// shown by the in-game overlay (F3).
+public class FrameProfiler {
+    public static final int UPDATE = 0;
+    public static final int TILES = 1;
+    public static final int OBJECTS = 2;
+    public static final int REMOTE_PLAYERS = 3;
+    public static final int BROADCAST = 4;
+    public static final int REMOTE_STATE = 5;
+    public static final int FRAME = 6;
+    static final String[] NAMES = {"update", "tiles", "objects", "remotePlayers", "broadcast", "remoteState", "frame"};
+
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    private final Histogram[] total = new Histogram[NAMES.length];
+    private final Histogram[] window = new Histogram[NAMES.length];
+
+    // Overlay figures for the last completed window, in nanoseconds
+    private final long[] lastCount = new long[NAMES.length];
+    private final long[] lastP50 = new long[NAMES.length];
+    private final long[] lastP99 = new long[NAMES.length];
+    private final long[] lastMax = new long[NAMES.length];
+    private volatile long windowStart = System.nanoTime();
+
+    private final Font font = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private final Color background = new Color(0, 0, 0, 170);
+
+    public FrameProfiler() {
+        for (int i = 0; i < NAMES.length; i++) {
+            total[i] = new Histogram();
+            window[i] = new Histogram();
+        }
+    }
+
+    // Usage: long start = System.nanoTime(); ... profiler.record(FrameProfiler.TILES, start);
+    public void record(int section, long startNanos) {
+        long now = System.nanoTime();
+        long elapsed = now - startNanos;
+        total[section].record(elapsed);
+        window[section].record(elapsed);
+        if (now - windowStart >= WINDOW_NANOS) {
+            roll(now);
+        }
+    }
+
+    // Closes the window every second, overlay or not, so turning it on shows the last
+    // second rather than everything since start
+    private synchronized void roll(long now) {
+        if (now - windowStart < WINDOW_NANOS) {
+            return;
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            lastCount[i] = window[i].count();
+            lastP50[i] = window[i].percentile(0.50);
+            lastP99[i] = window[i].percentile(0.99);
+            lastMax[i] = window[i].max();
+            window[i].reset();
+        }
+        windowStart = now;
+    }
+
+    public Histogram getHistogram(int section) {
+        return total[section];
+    }
+
+    public void drawOverlay(Graphics2D g2) {
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            roll(now);
+        }
+
+        int x = 10;
+        int y = 34;
+        int lineHeight = 14;
+        g2.setColor(background);
+        g2.fillRect(x - 4, y - 12, 380, lineHeight * (NAMES.length + 1) + 6);
+        g2.setFont(font);
+        g2.setColor(Color.WHITE);
+        g2.drawString(String.format("%-14s %5s %8s %8s %8s", "section", "n/s", "p50 us", "p99 us", "max us"), x, y);
+        for (int i = 0; i < NAMES.length; i++) {
+            y += lineHeight;
+            g2.drawString(String.format("%-14s %5d %8.1f %8.1f %8.1f", NAMES[i], lastCount[i],
+                    lastP50[i] / 1000.0, lastP99[i] / 1000.0, lastMax[i] / 1000.0), x, y);
+        }
+    }
+
+    public void writeCsv(Path file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("section,count,mean_us,p50_us,p99_us,max_us");
+            for (int i = 0; i < NAMES.length; i++) {
+                Histogram h = total[i];
+                out.printf(Locale.ROOT, "%s,%d,%.2f,%.2f,%.2f,%.2f%n", NAMES[i], h.count(), h.mean() / 1000.0,
+                        h.percentile(0.50) / 1000.0, h.percentile(0.99) / 1000.0, h.max() / 1000.0);
+            }
+        }
+    }
+
+    public void writeCsvOnExit() {
+        String file = System.getProperty("game.profile.csv");
+        if (file == null || file.isEmpty()) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeCsv(Paths.get(file));
+                System.out.println("Frame profile written to " + file);
+            } catch (IOException e) {
+                System.err.println("Could not write frame profile: " + e.getMessage());
+            }
+        }));
+    }
+}
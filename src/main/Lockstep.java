@@ -0,0 +1,283 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import entity.Player;
+import network.NetworkManager;
+
+// Deterministic lockstep: instead of positions and objects, peers only exchange their
+// keys, one INPUT (5 bytes of payload) per player per tick, and every peer runs the same
+// simulation of every player. Tick t is only simulated once everyone's input for it is
+// in; local input is sent INPUT_DELAY ticks ahead so that, on a good network, it has
+// arrived by then. Pickups need no lock: every peer sees the same player reach the
+// object on the same tick. Every HASH_INTERVAL ticks the state is hashed and the hash
+// exchanged, so a desync is reported rather than drifting silently.
+// Needs a full mesh of all the players, started from the same world, with the whole
+// map in memory (a region that is not loaded counts as solid).
+class Lockstep {
+    static final int INPUT_DELAY = Math.max(1, Math.min(Integer.getInteger("game.net.inputDelay", 3), 60));
+    static final int HASH_INTERVAL = Math.max(1, Integer.getInteger("game.net.hashInterval", 60));
+    // Inputs kept per player, in ticks; a peer is never more than 2 * INPUT_DELAY ahead
+    private static final int RING = 256;
+    // Hashes kept, ours and each player's unchecked ones: enough to span that lead
+    private static final int HASHES_KEPT = 2 * INPUT_DELAY / HASH_INTERVAL + 2;
+
+    static final int UP = 1, DOWN = 2, LEFT = 4, RIGHT = 8;
+
+    // Input received from one player, and its state hashes not checked yet (indexed like
+    // hashTicks). Guarded by Lockstep.this
+    private static class Inputs {
+        final int[] ticks = new int[RING];
+        final int[] bits = new int[RING];
+        final int[] pendingHashTicks = new int[HASHES_KEPT];
+        final int[] pendingHashes = new int[HASHES_KEPT];
+
+        Inputs() {
+            Arrays.fill(ticks, -1);
+            Arrays.fill(pendingHashTicks, -1);
+            // Nobody presses anything before the first input can have arrived
+            for (int t = 0; t < INPUT_DELAY; t++) {
+                ticks[t] = t;
+            }
+        }
+    }
+
+    private final gamePanel gp;
+    private final NetworkManager network;
+    private final int players;
+    // Inputs arrive before the game starts too, so they are kept by player id
+    private final Map<Integer, Inputs> inputs = new HashMap<>();
+
+    // Fixed at start, in id order, which is also the order players are simulated in;
+    // the local one is gp.player
+    private int[] ids;
+    private Player[] simulated;
+    private keyHandler[] keys;
+    private Inputs[] playerInputs;
+    private volatile boolean started;
+    private boolean reportedExtraPeers;
+
+    // Game thread only
+    private int tick, sentTick = INPUT_DELAY - 1;
+    private int waitingFor = -1;
+    private long stalls;
+
+    // Our hashes, by tick / HASH_INTERVAL. Guarded by this
+    private final int[] hashTicks = new int[HASHES_KEPT];
+    private final int[] hashes = new int[HASHES_KEPT];
+    private volatile long desyncs;
+
+    Lockstep(gamePanel gp, NetworkManager network, int players) {
+        this.gp = gp;
+        this.network = network;
+        this.players = players;
+        Arrays.fill(hashTicks, -1);
+        if (!gp.tileM.isResident()) {
+            System.err.println("Lockstep: the world does not fit in game.world.budgetMB, peers may desync");
+        }
+    }
+
+    // Once exactly the other players are connected, the roster is fixed and tick 0 can
+    // start. Every peer in the mesh then sees the same ids; with extra peers it would
+    // not, so those keep it waiting (and are reported) until they leave
+    private boolean tryStart() {
+        int[] peerIds = network.getPeerIds();
+        if (peerIds.length != players - 1) {
+            if (peerIds.length > players - 1 && !reportedExtraPeers) {
+                System.err.println("Lockstep: " + (peerIds.length + 1) + " players connected " + Arrays.toString(peerIds)
+                        + " but game.net.lockstep is " + players + ", waiting for the extra ones to leave");
+            }
+            reportedExtraPeers = peerIds.length > players - 1;
+            return false;
+        }
+        ids = Arrays.copyOf(peerIds, players);
+        ids[players - 1] = network.getPlayerId();
+        Arrays.sort(ids);
+        simulated = new Player[players];
+        keys = new keyHandler[players];
+        playerInputs = new Inputs[players];
+        for (int i = 0; i < players; i++) {
+            keys[i] = new keyHandler();
+            if (ids[i] == network.getPlayerId()) {
+                simulated[i] = gp.player;
+                gp.player.setKeyHandler(keys[i]);
+            } else {
+                simulated[i] = new Player(gp, keys[i]);
+            }
+            playerInputs[i] = inputsOf(ids[i]);
+        }
+        started = true;
+        System.out.println("Lockstep started with players " + Arrays.toString(ids));
+        return true;
+    }
+
+    private synchronized Inputs inputsOf(int playerId) {
+        return inputs.computeIfAbsent(playerId, id -> new Inputs());
+    }
+
+    // Game thread, once per game tick
+    void update() {
+        if (!started && !tryStart()) {
+            gp.player.savePosition();
+            return;
+        }
+        for (Player player : simulated) {
+            player.savePosition();
+        }
+        // Our input for INPUT_DELAY ticks from now, once per simulated tick
+        if (sentTick < tick + INPUT_DELAY) {
+            sentTick = tick + INPUT_DELAY;
+            int bits = (gp.keyH.upPressed ? UP : 0) | (gp.keyH.downPressed ? DOWN : 0)
+                    | (gp.keyH.leftPressed ? LEFT : 0) | (gp.keyH.rightPressed ? RIGHT : 0);
+            onInput(network.getPlayerId(), sentTick, bits);
+            network.sendInput(sentTick, bits);
+        }
+        if (!applyInputs()) {
+            stalls++;
+            return;
+        }
+        gp.tileM.update();
+        for (Player player : simulated) {
+            player.update();
+        }
+        if ((tick + 1) % HASH_INTERVAL == 0) {
+            int hash = hash();
+            recordHash(tick, hash);
+            network.sendStateHash(tick, hash);
+        }
+        tick++;
+    }
+
+    // Sets every player's keys for this tick, if all of them are in
+    private synchronized boolean applyInputs() {
+        int slot = tick & (RING - 1);
+        for (int i = 0; i < players; i++) {
+            if (playerInputs[i].ticks[slot] != tick) {
+                waitingFor = ids[i];
+                return false;
+            }
+        }
+        waitingFor = -1;
+        for (int i = 0; i < players; i++) {
+            int bits = playerInputs[i].bits[slot];
+            keys[i].upPressed = (bits & UP) != 0;
+            keys[i].downPressed = (bits & DOWN) != 0;
+            keys[i].leftPressed = (bits & LEFT) != 0;
+            keys[i].rightPressed = (bits & RIGHT) != 0;
+        }
+        return true;
+    }
+
+    // Any thread: playerId's input for tick
+    synchronized void onInput(int playerId, int tick, int bits) {
+        Inputs in = inputsOf(playerId);
+        int slot = tick & (RING - 1);
+        in.ticks[slot] = tick;
+        in.bits[slot] = bits;
+    }
+
+    // Any thread: playerId's hash after tick, checked against ours now or once we get there
+    synchronized void onStateHash(int playerId, int tick, int hash) {
+        if (tick < 0) {
+            return;
+        }
+        int slot = (tick / HASH_INTERVAL) % HASHES_KEPT;
+        if (hashTicks[slot] == tick) {
+            check(playerId, tick, hash, hashes[slot]);
+        } else {
+            Inputs in = inputsOf(playerId);
+            in.pendingHashTicks[slot] = tick;
+            in.pendingHashes[slot] = hash;
+        }
+    }
+
+    private synchronized void recordHash(int tick, int hash) {
+        int slot = (tick / HASH_INTERVAL) % HASHES_KEPT;
+        hashTicks[slot] = tick;
+        hashes[slot] = hash;
+        for (Map.Entry<Integer, Inputs> entry : inputs.entrySet()) {
+            Inputs in = entry.getValue();
+            if (in.pendingHashTicks[slot] == tick) {
+                check(entry.getKey(), tick, in.pendingHashes[slot], hash);
+                in.pendingHashTicks[slot] = -1;
+            }
+        }
+    }
+
+    private void check(int playerId, int tick, int theirs, int ours) {
+        if (theirs != ours) {
+            desyncs++;
+            System.err.printf("Lockstep: desync with player %d at tick %d (%08x, ours %08x)%n", playerId, tick, theirs,
+                    ours);
+        }
+    }
+
+    // Everything the simulation decides: the players, in id order, and the objects left
+    int hash() {
+        long h = 0xcbf29ce484222325L;
+        for (Player player : simulated) {
+            h = mix(h, player.worldX);
+            h = mix(h, player.worldY);
+            h = mix(h, player.direction);
+            h = mix(h, player.spriteNum);
+            h = mix(h, player.spriteCounter);
+            h = mix(h, player.speed);
+            h = mix(h, player.hasKey);
+        }
+        for (int i = 0; i < gp.obj.length; i++) {
+            if (gp.obj[i] != null) {
+                h = mix(h, i);
+            }
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long mix(long h, int value) {
+        return (h ^ value) * 0x100000001b3L;
+    }
+
+    void draw(Graphics2D g2, double alpha) {
+        if (!started) {
+            return;
+        }
+        for (Player player : simulated) {
+            if (player != gp.player) {
+                player.interpolate(alpha);
+            }
+        }
+        for (int i = 0; i < players; i++) {
+            if (simulated[i] != gp.player) {
+                simulated[i].drawRelativeTo(g2, gp.player, ids[i]);
+            }
+        }
+    }
+
+    String status() {
+        if (!started) {
+            int connected = network.getPeerIds().length + 1;
+            if (connected > players) {
+                return "Lockstep: too many players (" + connected + "/" + players + ")";
+            }
+            return "Lockstep: waiting for players (" + connected + "/" + players + ")";
+        }
+        String status = "Lockstep: " + players + " players, tick " + tick + ", " + stalls + " stalls";
+        if (waitingFor >= 0) {
+            status += ", waiting for P" + waitingFor;
+        }
+        if (desyncs > 0) {
+            status += ", " + desyncs + " desyncs";
+        }
+        return status;
+    }
+
+    int getTick() {
+        return tick;
+    }
+
+    long getDesyncs() {
+        return desyncs;
+    }
+}
@@ -35,9 +35,7 @@ public class Main {
                 gamePanel gamePanel = new gamePanel();
                 
                 // Create network manager with callback
-                networkManager = new NetworkManager(playerId, port, (data) -> {
-                    gamePanel.handleRemoteGameState(data);
-                });
+                networkManager = new NetworkManager(playerId, port, gamePanel);
                 networkManager.start();
                 
                 gamePanel.setNetworkManager(networkManager);
@@ -79,9 +77,7 @@ public class Main {
                 gamePanel gamePanel = new gamePanel();
                 
                 // Create network manager with callback
-                networkManager = new NetworkManager(playerId, port, (data) -> {
-                    gamePanel.handleRemoteGameState(data);
-                });
+                networkManager = new NetworkManager(playerId, port, gamePanel);
                 networkManager.start();
                 
                 // Connect to host
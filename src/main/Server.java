@@ -0,0 +1,136 @@
+package main;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+import network.GameState;
+import network.NetworkManager;
+import object.SuperObject;
+
+// Headless authoritative server for a star topology. It owns the world (map and
+// objects), relays every client's position to the others, decides each pickup and
+// sends the object snapshots, so a client only ever talks to the server.
+// Clients connect with "Join Game", giving this port and the server id.
+// Run: java -Djava.awt.headless=true -cp bin:res main.Server [port] [serverId]
+public class Server implements NetworkManager.GameStateCallback {
+    static final long SEND_INTERVAL = 1000000000L / Integer.getInteger("game.net.sendRate", 15);
+    private static final long CLIENT_TIMEOUT = 5000; // milliseconds
+
+    // What the server knows about each client
+    static class Client {
+        volatile int worldX, worldY;
+        volatile long lastSeen;
+        int keys;
+    }
+
+    final gamePanel world;
+    final NetworkManager networkManager;
+    private final Map<Integer, Client> clients = new ConcurrentHashMap<>();
+    private final GameState outState = new GameState();
+    private volatile boolean running = true;
+
+    public Server(int port, int serverId) {
+        // The same world every client builds; nothing of it is drawn or played here
+        world = new gamePanel();
+        world.aSetter.setObject();
+        networkManager = new NetworkManager(serverId, port, this);
+        networkManager.setAuthoritative(true);
+        world.applyInterestArea(networkManager);
+    }
+
+    public void start() throws IOException {
+        networkManager.start();
+    }
+
+    // Sends the object snapshot at the network rate until shutdown
+    public void run() {
+        long next = System.nanoTime();
+        while (running) {
+            synchronized (outState) {
+                world.fillObjectState(outState);
+                networkManager.broadcastObjects(outState);
+            }
+            long now = System.currentTimeMillis();
+            clients.values().removeIf(client -> now - client.lastSeen > CLIENT_TIMEOUT);
+
+            next += SEND_INTERVAL;
+            long remaining;
+            while ((remaining = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    public NetworkManager getNetworkManager() {
+        return networkManager;
+    }
+
+    public void shutdown() {
+        running = false;
+        networkManager.shutdown();
+        System.out.println("Server stopped, " + NetworkManager.describeThreads());
+    }
+
+    @Override
+    public void onGameStateUpdate(GameState state) {
+        if (!state.hasPlayer) {
+            return;
+        }
+        Client client = clients.computeIfAbsent(state.playerId, id -> new Client());
+        client.worldX = state.worldX;
+        client.worldY = state.worldY;
+        client.lastSeen = System.currentTimeMillis();
+    }
+
+    // A pickup is granted if the object is still there, the client was last seen
+    // touching it (give or take a tile for the updates in flight) and, for a door,
+    // it holds a key
+    @Override
+    public synchronized boolean onPickupRequest(int playerId, int index) {
+        Client client = clients.get(playerId);
+        SuperObject[] objects = world.obj;
+        if (client == null || index < 0 || index >= objects.length || objects[index] == null) {
+            return false;
+        }
+        SuperObject object = objects[index];
+        int size = world.tileSize;
+        int left = client.worldX + world.player.solidArea.x;
+        int top = client.worldY + world.player.solidArea.y;
+        int right = left + world.player.solidArea.width;
+        int bottom = top + world.player.solidArea.height;
+        if (right < object.worldX - size || left > object.worldX + 2 * size
+                || bottom < object.worldY - size || top > object.worldY + 2 * size) {
+            return false;
+        }
+        switch (object.name) {
+            case "Key":
+                client.keys++;
+                break;
+            case "Door":
+                if (client.keys == 0) {
+                    return false;
+                }
+                client.keys--;
+                break;
+            default:
+                break;
+        }
+        world.removeObject(index);
+        System.out.println("Player " + playerId + " picked up " + object.name + " " + index);
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int serverId = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+
+        Server server = new Server(port, serverId);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+        System.out.println("Server " + serverId + " running on port " + port);
+        server.run();
+    }
+}
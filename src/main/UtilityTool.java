@@ -0,0 +1,78 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+public class UtilityTool {
+
+    // Every sprite is converted once, at load time, into an image compatible with
+    // the screen and already at its on-screen size, so drawImage never has to scale
+    // or convert pixel formats inside the frame.
+    private static final Map<String, BufferedImage> images = new LinkedHashMap<>();
+    private static final StringBuilder report = new StringBuilder();
+    private static long totalBytes = 0;
+    private static long totalNanos = 0;
+
+    public static synchronized BufferedImage loadImage(String path, int width, int height) throws IOException {
+        String key = path + "@" + width + "x" + height;
+        BufferedImage image = images.get(key);
+        if (image != null) {
+            return image;
+        }
+
+        long start = System.nanoTime();
+        BufferedImage original;
+        try (InputStream is = UtilityTool.class.getResourceAsStream(path)) {
+            if (is == null) {
+                throw new IOException("Missing resource " + path);
+            }
+            original = ImageIO.read(is);
+        }
+        image = scaleImage(original, width, height);
+        long nanos = System.nanoTime() - start;
+
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long bytes = (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        totalBytes += bytes;
+        totalNanos += nanos;
+        report.append(String.format("  %-48s %3dx%-3d -> %3dx%-3d %7.1f KB %7.2f ms%n",
+                path, original.getWidth(), original.getHeight(), width, height, bytes / 1024.0, nanos / 1e6));
+
+        images.put(key, image);
+        return image;
+    }
+
+    public static BufferedImage scaleImage(BufferedImage original, int width, int height) {
+        BufferedImage scaledImage = createCompatibleImage(width, height, original.getTransparency());
+        Graphics2D g2 = scaledImage.createGraphics();
+        g2.drawImage(original, 0, 0, width, height, null);
+        g2.dispose();
+        return scaledImage;
+    }
+
+    public static BufferedImage createCompatibleImage(int width, int height, int transparency) {
+        if (!GraphicsEnvironment.isHeadless()) {
+            GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDefaultConfiguration();
+            return gc.createCompatibleImage(width, height, transparency);
+        }
+        // No screen (server, tools): fall back to plain packed int images
+        int type = transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+        return new BufferedImage(width, height, type);
+    }
+
+    public static synchronized void printReport() {
+        System.out.print("Loaded " + images.size() + " sprites:\n" + report);
+        System.out.printf("  total %.1f KB in %.2f ms%n", totalBytes / 1024.0, totalNanos / 1e6);
+    }
+}
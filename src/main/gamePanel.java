@@ -1,22 +1,40 @@
 package main;
 
+import java.awt.BorderLayout;
+import java.awt.Canvas;
 import java.awt.Dimension;
 import java.awt.Color;
+import java.awt.Toolkit;
+import java.awt.image.BufferStrategy;
+import java.util.Arrays;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import entity.Player;
 import entity.RemotePlayer;
+import object.ObjectGrid;
 import object.SuperObject;
 import tile.tileManager;
+import network.GameState;
 import network.NetworkManager;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
-public class gamePanel extends JPanel implements Runnable {
+public class gamePanel extends JPanel implements Runnable, NetworkManager.GameStateCallback {
     
     Sound sound = new Sound();
-    final int fps = 60;
+    
+    // GAME LOOP
+    // The simulation advances in fixed ticks (speeds are per 1/60 s and scaled to the
+    // tick rate); frames are drawn at their own rate, interpolating positions between ticks
+    public final int tickRate = positiveProperty("game.tickRate", 60);
+    final int fps = positiveProperty("game.fps", 60);
+    static final int MAX_CATCH_UP_TICKS = 5;
+    private volatile double renderAlpha = 1.0;
+    public FrameProfiler profiler = new FrameProfiler();
     tileManager tileM = new tileManager(this);
     
     final int originalTileSize = 16;
@@ -29,25 +47,46 @@ public class gamePanel extends JPanel implements Runnable {
     final public int screenHeight = tileSize * maxScreenRow;
     
     // WORLD SETTINGS
-    public final int maxWorldCol = 50;
-    public final int maxWorldRow = 50;
+    // Set by tileManager from the loaded map (tileM is created above, so no initializer here)
+    public int maxWorldCol;
+    public int maxWorldRow;
     
     keyHandler keyH = new keyHandler();
     Thread gameThread;
+    
+    // RENDERING
+    // -Dgame.render=active makes the game thread draw and flip its own buffers on a Canvas;
+    // anything else keeps the Swing repaint()/paintComponent path
+    static final boolean ACTIVE_RENDERING = "active".equalsIgnoreCase(System.getProperty("game.render"));
+    private Canvas canvas;
+    private BufferStrategy bufferStrategy;
     public CollisionChecker cChecker = new CollisionChecker(this);
     
     // ENTITY AND OBJECT 
     public Player player = new Player(this, keyH);
     public SuperObject obj[] = new SuperObject[10];
+    private int objectCount = 0;
+    public ObjectGrid objGrid = new ObjectGrid(maxWorldCol, maxWorldRow, tileSize, 8);
+    private int[] visibleObjects = new int[32];
     public AssetSetter aSetter = new AssetSetter(this);
     
     // NETWORK
     private NetworkManager networkManager;
     private long lastNetworkUpdate = 0;
-    private static final long NETWORK_UPDATE_INTERVAL = 50; // milliseconds
+    // Remote players are interpolated from a jitter buffer, so a low rate still looks smooth
+    private static final long NETWORK_UPDATE_INTERVAL = 1000 / Integer.getInteger("game.net.sendRate", 15); // milliseconds
     
     // REMOTE PLAYERS
     private Map<Integer, RemotePlayer> remotePlayers = new ConcurrentHashMap<>();
+    private final GameState outState = new GameState();
+    // Pickups asked of the server, or waiting for their lock among peers, and not done yet
+    private final Set<Integer> pendingPickups = ConcurrentHashMap.newKeySet();
+    
+    // LOCKSTEP
+    // -Dgame.net.lockstep=<players> swaps state sync for input sync between that many
+    // peers (see Lockstep); 0 keeps positions and objects
+    static final int LOCKSTEP_PLAYERS = Integer.getInteger("game.net.lockstep", 0);
+    Lockstep lockstep;
     
     public gamePanel() {
         this.setPreferredSize(new Dimension(screenWidth, screenHeight));
@@ -55,34 +94,88 @@ public class gamePanel extends JPanel implements Runnable {
         this.setDoubleBuffered(true);
         this.addKeyListener(keyH);
         this.setFocusable(true);
+        
+        if (ACTIVE_RENDERING) {
+            canvas = new Canvas();
+            canvas.setPreferredSize(new Dimension(screenWidth, screenHeight));
+            canvas.setBackground(Color.black);
+            canvas.setIgnoreRepaint(true);
+            canvas.addKeyListener(keyH);
+            canvas.setFocusable(true);
+            this.setIgnoreRepaint(true);
+            this.setLayout(new BorderLayout());
+            this.add(canvas, BorderLayout.CENTER);
+        }
+    }
+    
+    private static int positiveProperty(String name, int defaultValue) {
+        int value = Integer.getInteger(name, defaultValue);
+        if (value <= 0) {
+            System.err.println(name + " must be positive, using " + defaultValue);
+            return defaultValue;
+        }
+        return value;
     }
     
     public void setNetworkManager(NetworkManager manager) {
         this.networkManager = manager;
+        applyInterestArea(manager);
+        if (LOCKSTEP_PLAYERS > 1) {
+            lockstep = new Lockstep(this, manager, LOCKSTEP_PLAYERS);
+        }
+    }
+    
+    // Peers send us every update for players within our screen plus this many tiles,
+    // and only a few for the rest
+    static final int INTEREST_RADIUS = Integer.getInteger("game.net.interestRadius", 4);
+    
+    void applyInterestArea(NetworkManager manager) {
+        manager.setInterestArea(screenWidth / 2 + INTEREST_RADIUS * tileSize,
+                screenHeight / 2 + INTEREST_RADIUS * tileSize);
     }
     
     public void setUpGame() {
         aSetter.setObject();
+        UtilityTool.printReport();
         playMusic(0);
     }
     
     public void startGameThread() {
+        profiler.writeCsvOnExit();
         gameThread = new Thread(this);
         gameThread.start();
     }
     
     @Override
     public void run() {
-        double drawInterval = 1000000000 / fps;
-        double nextDrawTime = System.nanoTime() + drawInterval;
+        setUpActiveRendering();
+        
+        long tickInterval = 1000000000L / tickRate;
+        long drawInterval = 1000000000L / fps;
+        long previousTime = System.nanoTime();
+        long nextDrawTime = previousTime + drawInterval;
+        long accumulator = 0;
         
         while (gameThread != null) {
             long currentTime = System.nanoTime();
-            update();
-            repaint();
+            accumulator += currentTime - previousTime;
+            previousTime = currentTime;
+            
+            int ticks = 0;
+            while (accumulator >= tickInterval && ticks < MAX_CATCH_UP_TICKS) {
+                update();
+                accumulator -= tickInterval;
+                ticks++;
+            }
+            if (accumulator >= tickInterval) {
+                // Too far behind to catch up: drop the backlog instead of spiralling
+                accumulator %= tickInterval;
+            }
+            renderAlpha = (double) accumulator / tickInterval;
+            render();
             
-            // Send game state to other players periodically
-            if (networkManager != null) {
+            // Send game state to other players periodically (in lockstep, input goes out every tick instead)
+            if (networkManager != null && lockstep == null) {
                 long now = System.currentTimeMillis();
                 if (now - lastNetworkUpdate > NETWORK_UPDATE_INTERVAL) {
                     broadcastGameState();
@@ -90,154 +183,308 @@ public class gamePanel extends JPanel implements Runnable {
                 }
             }
             
-            double remainingTime = nextDrawTime - System.nanoTime();
-            remainingTime = remainingTime / 1000000;
-            
-            try {
-                if (remainingTime < 0) {
-                    remainingTime = 0;
-                }
-                Thread.sleep((long) remainingTime);
-                nextDrawTime += drawInterval;
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            long remainingTime;
+            while ((remainingTime = nextDrawTime - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remainingTime);
+            }
+            nextDrawTime += drawInterval;
+            if (System.nanoTime() - nextDrawTime > drawInterval) {
+                // Missed frames are skipped, not replayed back to back
+                nextDrawTime = System.nanoTime() + drawInterval;
             }
         }
     }
     
     public void update() {
+        long start = System.nanoTime();
+        if (lockstep != null) {
+            lockstep.update();
+            profiler.record(FrameProfiler.UPDATE, start);
+            return;
+        }
+        player.savePosition();
+        for (RemotePlayer remotePlayer : remotePlayers.values()) {
+            remotePlayer.savePosition();
+        }
+        tileM.update();
         player.update();
         
         // Remove inactive remote players
         remotePlayers.entrySet().removeIf(entry -> !entry.getValue().isActive());
+        profiler.record(FrameProfiler.UPDATE, start);
+    }
+    
+    // Must run once the window is visible, from the thread that will own the buffers
+    private void setUpActiveRendering() {
+        if (canvas == null) {
+            return;
+        }
+        try {
+            canvas.createBufferStrategy(2);
+            bufferStrategy = canvas.getBufferStrategy();
+            canvas.requestFocus();
+            System.out.println("Active rendering: page flipping "
+                    + (bufferStrategy.getCapabilities().isPageFlipping() ? "on" : "off"));
+        } catch (Exception e) {
+            System.err.println("Active rendering unavailable, using Swing: " + e.getMessage());
+            bufferStrategy = null;
+            SwingUtilities.invokeLater(() -> {
+                remove(canvas);
+                canvas = null;
+                setIgnoreRepaint(false);
+                revalidate();
+                requestFocus();
+            });
+        }
+    }
+    
+    private void render() {
+        if (bufferStrategy == null) {
+            repaint();
+            return;
+        }
+        long start = System.nanoTime();
+        do {
+            do {
+                Graphics2D g2 = (Graphics2D) bufferStrategy.getDrawGraphics();
+                g2.setColor(Color.black);
+                g2.fillRect(0, 0, screenWidth, screenHeight);
+                drawGame(g2);
+                g2.dispose();
+            } while (bufferStrategy.contentsRestored());
+            bufferStrategy.show();
+        } while (bufferStrategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        profiler.record(FrameProfiler.FRAME, start);
     }
     
     public void paintComponent(Graphics g) {
+        long start = System.nanoTime();
         super.paintComponent(g);
         Graphics2D g2 = (Graphics2D) g;
+        drawGame(g2);
+        g2.dispose();
+        profiler.record(FrameProfiler.FRAME, start);
+    }
+    
+    private void drawGame(Graphics2D g2) {
+        double alpha = renderAlpha;
+        player.interpolate(alpha);
+        for (RemotePlayer remotePlayer : remotePlayers.values()) {
+            remotePlayer.interpolate(alpha);
+        }
         
         // tile
+        long start = System.nanoTime();
         tileM.draw(g2);
+        profiler.record(FrameProfiler.TILES, start);
         
         // OBJECT
-        for (int i = 0; i < obj.length; i++) {
-            if (obj[i] != null) {
-                obj[i].draw(g2, this);
+        start = System.nanoTime();
+        int viewX = player.renderX - player.screenX;
+        int viewY = player.renderY - player.screenY;
+        int count;
+        while ((count = objGrid.query(viewX, viewY, viewX + screenWidth, viewY + screenHeight, visibleObjects)) > visibleObjects.length) {
+            visibleObjects = new int[count * 2];
+        }
+        for (int i = 0; i < count; i++) {
+            SuperObject object = obj[visibleObjects[i]];
+            if (object != null) {
+                object.draw(g2, this);
             }
         }
+        profiler.record(FrameProfiler.OBJECTS, start);
         
         // Draw remote players BEFORE local player
+        start = System.nanoTime();
         for (RemotePlayer remotePlayer : remotePlayers.values()) {
             remotePlayer.draw(g2, player.screenX, player.screenY);
         }
+        if (lockstep != null) {
+            lockstep.draw(g2, alpha);
+        }
+        profiler.record(FrameProfiler.REMOTE_PLAYERS, start);
         
         // Draw local player
         player.draw(g2);
         
         // Draw player count
         g2.setColor(Color.WHITE);
-        g2.drawString("Players: " + (remotePlayers.size() + 1), 10, 20);
+        if (lockstep != null) {
+            g2.drawString(lockstep.status(), 10, 20);
+        } else {
+            g2.drawString("Players: " + (remotePlayers.size() + 1), 10, 20);
+        }
         
-        g2.dispose();
+        if (keyH.showProfiler) {
+            profiler.drawOverlay(g2);
+        }
     }
     
     // Broadcast current game state to all connected players
     private void broadcastGameState() {
-        String gameState = serializeGameState();
-        networkManager.broadcastGameState(gameState);
+        long start = System.nanoTime();
+        // Called from the game loop and from critical sections, so guard the shared state
+        synchronized (outState) {
+            fillGameState(outState);
+            networkManager.broadcastGameState(outState);
+        }
+        profiler.record(FrameProfiler.BROADCAST, start);
     }
     
-    // Serialize game state to string
-    private String serializeGameState() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("PLAYER:");
-        sb.append(networkManager.getPlayerId()).append(",");
-        sb.append(player.worldX).append(",");
-        sb.append(player.worldY).append(",");
-        sb.append(player.direction).append(",");
-        sb.append(player.spriteNum);
-        
-        // Add object states
-        sb.append("|OBJECTS:");
-        for (int i = 0; i < obj.length; i++) {
-            if (obj[i] != null) {
-                sb.append(i).append(":").append(obj[i].name).append(";");
-            } else {
-                sb.append(i).append(":null;");
+    private void fillGameState(GameState state) {
+        state.hasPlayer = true;
+        state.hasObjects = true;
+        state.playerId = networkManager.getPlayerId();
+        state.worldX = player.worldX;
+        state.worldY = player.worldY;
+        state.direction = player.direction;
+        state.spriteNum = player.spriteNum;
+        fillObjectState(state);
+    }
+    
+    // Also used by Server, whose objects are the authoritative ones
+    void fillObjectState(GameState state) {
+        state.hasObjects = true;
+        SuperObject[] objects = obj;
+        state.setObjectCount(objects.length);
+        for (int i = 0; i < objects.length; i++) {
+            if (objects[i] != null) {
+                state.setPresent(i);
             }
         }
-        
-        return sb.toString();
+    }
+    
+    @Override
+    public void onGameStateUpdate(GameState state) {
+        handleRemoteGameState(state);
+    }
+    
+    @Override
+    public void onInput(int playerId, int tick, int bits) {
+        if (lockstep != null) {
+            lockstep.onInput(playerId, tick, bits);
+        }
+    }
+    
+    @Override
+    public void onStateHash(int playerId, int tick, int hash) {
+        if (lockstep != null) {
+            lockstep.onStateHash(playerId, tick, hash);
+        }
     }
     
     // Handle incoming game state from remote players
-    public void handleRemoteGameState(String data) {
-        if (data == null || data.isEmpty()) return;
+    public void handleRemoteGameState(GameState state) {
+        if (state == null) return;
         
-        try {
-            String[] parts = data.split("\\|");
-            for (String part : parts) {
-                if (part.startsWith("PLAYER:")) {
-                    String playerData = part.substring(7);
-                    String[] values = playerData.split(",");
-                    
-                    int remotePlayerId = Integer.parseInt(values[0]);
-                    int worldX = Integer.parseInt(values[1]);
-                    int worldY = Integer.parseInt(values[2]);
-                    String direction = values[3];
-                    int spriteNum = Integer.parseInt(values[4]);
-                    
-                    // Don't create a remote player for ourselves
-                    if (networkManager != null && remotePlayerId == networkManager.getPlayerId()) {
-                        continue;
-                    }
-                    
-                    // Get or create remote player
-                    RemotePlayer remotePlayer = remotePlayers.get(remotePlayerId);
-                    if (remotePlayer == null) {
-                        remotePlayer = new RemotePlayer(this, remotePlayerId);
-                        remotePlayers.put(remotePlayerId, remotePlayer);
-                        System.out.println("New remote player connected: " + remotePlayerId);
-                    }
-                    
-                    // Update remote player position
-                    remotePlayer.updatePosition(worldX, worldY, direction, spriteNum);
-                    
-                } else if (part.startsWith("OBJECTS:")) {
-                    // Handle object synchronization
-                    String objectData = part.substring(8);
-                    if (!objectData.isEmpty()) {
-                        String[] objects = objectData.split(";");
-                        for (String objInfo : objects) {
-                            if (!objInfo.isEmpty()) {
-                                String[] objParts = objInfo.split(":");
-                                int index = Integer.parseInt(objParts[0]);
-                                String objName = objParts[1];
-                                
-                                // Sync object state (simple version)
-                                if (objName.equals("null")) {
-                                    obj[index] = null;
-                                }
-                            }
-                        }
+        long start = System.nanoTime();
+        
+        // Don't create a remote player for ourselves
+        if (state.hasPlayer && (networkManager == null || state.playerId != networkManager.getPlayerId())) {
+            // Get or create remote player
+            RemotePlayer remotePlayer = remotePlayers.get(state.playerId);
+            if (remotePlayer == null) {
+                remotePlayer = new RemotePlayer(this, state.playerId);
+                remotePlayers.put(state.playerId, remotePlayer);
+                System.out.println("New remote player connected: " + state.playerId);
+            }
+            
+            // Update remote player position
+            remotePlayer.updatePosition(state.worldX, state.worldY, state.direction, state.spriteNum, state.sentAt);
+        }
+        
+        // Sync object state: whatever the sender no longer has was picked up there.
+        // Only the words that changed since the last snapshot need looking at
+        if (state.hasObjects) {
+            int count = Math.min(state.objectCount, obj.length);
+            for (int w = 0; w < state.getChangedWordCount(); w++) {
+                int first = state.getChangedWord(w) << 6;
+                int last = Math.min(first + 64, count);
+                for (int i = first; i < last; i++) {
+                    if (!state.isPresent(i) && obj[i] != null) {
+                        removeObject(i);
                     }
                 }
             }
-        } catch (Exception e) {
-            System.err.println("Error parsing game state: " + e.getMessage());
-            e.printStackTrace();
         }
+        profiler.record(FrameProfiler.REMOTE_STATE, start);
+    }
+    
+    // Objects get the next free index (the same on every peer, since they all run
+    // the same AssetSetter) and are filed in the grid by their tile position
+    public synchronized int addObject(SuperObject object, int col, int row) {
+        object.worldX = col * tileSize;
+        object.worldY = row * tileSize;
+        if (objectCount == obj.length) {
+            obj = Arrays.copyOf(obj, obj.length * 2);
+        }
+        int index = objectCount++;
+        obj[index] = object;
+        objGrid.add(index, object);
+        return index;
+    }
+    
+    public synchronized void removeObject(int index) {
+        if (index < 0 || index >= obj.length || obj[index] == null) {
+            return;
+        }
+        objGrid.remove(index, obj[index]);
+        obj[index] = null;
     }
     
-    // Use critical section for important game events (like picking up items)
+    // A player touched object index (999 for none). Under a server the pickup is its
+    // call: ask once, and pick up when it says yes. Between peers it is taken under the
+    // object's lock, asked for once too. In lockstep every peer simulates every player
+    // the same way, so whoever touches it first simply gets it
+    public void touchObject(Player who, int index) {
+        if (index == 999) {
+            return;
+        }
+        if (lockstep != null || networkManager == null) {
+            who.pickUpObject(index);
+            return;
+        }
+        SuperObject object = obj[index];
+        // A door without a key would only be refused, every tick
+        if (object == null || ("Door".equals(object.name) && player.hasKey == 0)) {
+            return;
+        }
+        if (!pendingPickups.add(index)) {
+            return;
+        }
+        if (networkManager.hasServer()) {
+            networkManager.requestPickup(index);
+        } else {
+            pickUpObjectWithLock(index);
+        }
+    }
+    
+    @Override
+    public void onPickupResult(int index, boolean granted) {
+        if (granted && index < obj.length && obj[index] != null) {
+            player.pickUpObject(index);
+        }
+        pendingPickups.remove(index);
+    }
+    
+    // Use critical section for important game events (like picking up items).
+    // The lock is per object, so pickups of different objects don't wait on each other
     public void pickUpObjectWithLock(int index) {
         if (networkManager != null) {
-            networkManager.requestCriticalSection(() -> {
+            networkManager.requestCriticalSection(index, () -> {
                 // This code runs in critical section (mutual exclusion)
-                player.pickUpObject(index);
+                // Someone else may have got there first while we waited. Pickups for
+                // other objects may run at the same time, on another task thread
+                synchronized (this) {
+                    if (obj[index] == null) {
+                        return;
+                    }
+                    player.pickUpObject(index);
+                }
                 // Broadcast the change immediately
                 broadcastGameState();
-            });
+            }).whenComplete((result, error) -> pendingPickups.remove(index));
         } else {
             // Single player mode
             player.pickUpObject(index);
@@ -6,6 +6,7 @@ import javax.swing.event.MenuKeyEvent;
 import java.awt.event.KeyEvent;
 public class keyHandler implements KeyListener{
 public boolean upPressed,downPressed,leftPressed,rightPressed;
+public boolean showProfiler;
 	@Override
 	public void keyTyped(KeyEvent e) {
 		// TODO Auto-generated method stub
@@ -27,6 +28,9 @@ if(code==MenuKeyEvent.VK_Q) {
 }
 if(code==MenuKeyEvent.VK_D) {
 	rightPressed=true;
+}
+if(code==KeyEvent.VK_F3) {
+	showProfiler=!showProfiler;
 }
 	}
 
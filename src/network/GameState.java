@@ -0,0 +1,63 @@
+package network;
+
+import java.util.Arrays;
+
+// What a peer broadcasts about itself: its player and which object slots it still has.
+// Instances are meant to be reused; the object bits only grow.
+// The two parts travel separately (PLAYER over UDP, objects over TCP), so a received
+// state says which part it holds.
+public class GameState {
+    public boolean hasPlayer, hasObjects;
+    public int playerId;
+    public int worldX, worldY;
+    public int direction;
+    public int spriteNum;
+    // Sender's clock in milliseconds when the player part was sent (wraps around)
+    public int sentAt;
+    
+    // Objects are only ever removed, so a cleared bit means "picked up on that peer"
+    public int objectCount;
+    long[] objectsPresent = new long[1];
+    // On a received state: the 64-object words that may differ from the previous one
+    int[] changedWords = new int[1];
+    int changedWordCount;
+    
+    public void setObjectCount(int count) {
+        objectCount = count;
+        int words = (count + 63) >>> 6;
+        if (objectsPresent.length < words) {
+            objectsPresent = Arrays.copyOf(objectsPresent, words);
+        }
+        Arrays.fill(objectsPresent, 0, words, 0L);
+    }
+    
+    public void setPresent(int index) {
+        objectsPresent[index >>> 6] |= 1L << index;
+    }
+    
+    public boolean isPresent(int index) {
+        return (objectsPresent[index >>> 6] & (1L << index)) != 0;
+    }
+    
+    public int getChangedWordCount() {
+        return changedWordCount;
+    }
+    
+    // Objects word * 64 up to word * 64 + 63
+    public int getChangedWord(int i) {
+        return changedWords[i];
+    }
+    
+    // Received objects, after the snapshot was rebuilt from its baseline
+    void setObjects(Snapshot full, Snapshot decoded) {
+        hasPlayer = false;
+        hasObjects = true;
+        setObjectCount(full.objectCount);
+        System.arraycopy(full.bits, 0, objectsPresent, 0, full.words());
+        if (changedWords.length < decoded.changedCount) {
+            changedWords = Arrays.copyOf(changedWords, decoded.changed.length);
+        }
+        System.arraycopy(decoded.changed, 0, changedWords, 0, decoded.changedCount);
+        changedWordCount = decoded.changedCount;
+    }
+}
@@ -0,0 +1,8 @@
+package network;
+
+import java.util.concurrent.CompletableFuture;
+
+// One local request for a lock key; completes on entry
+class LockEntry extends CompletableFuture<Void> {
+    final long requestedAt = System.nanoTime();
+}
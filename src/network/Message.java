@@ -0,0 +1,63 @@
+package network;
+
+// Sent with WireCodec; received ones are reused for the next frame, so they are only
+// valid until handleMessage returns. PLAYER carries a GameState, GAME_STATE a Snapshot (and the
+// baseline it is encoded against when sending); value is the UDP port (plus the
+// AUTHORITATIVE flag) for CONNECT, the sequence number for PLAYER, the snapshot id for
+// ACK, the lock key for REQUEST, REPLY and RELEASE, the object index for PICKUP, the
+// pinging side's clock in microseconds for PING and PONG, tick << 8 | input bits for
+// INPUT and tick << 32 | hash for STATE_HASH
+class Message {
+    private MessageType type;
+    private int senderId;
+    private int timestamp;
+    private GameState state;
+    private long value;
+    private Snapshot snapshot, baseline;
+    
+    public Message(MessageType type, int senderId, int timestamp, GameState state) {
+        this(type, senderId, timestamp, state, 0);
+    }
+    
+    public Message(MessageType type, int senderId, int timestamp, GameState state, long value) {
+        this.type = type;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.state = state;
+        this.value = value;
+    }
+    
+    public Message(MessageType type, int senderId, int timestamp, Snapshot snapshot, Snapshot baseline) {
+        this(type, senderId, timestamp, null, 0);
+        this.snapshot = snapshot;
+        this.baseline = baseline;
+    }
+    
+    // For the receive path, which decodes every frame into the same few Messages
+    Message() {
+    }
+    
+    Message set(MessageType type, int senderId, int timestamp, GameState state, long value) {
+        this.type = type;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.state = state;
+        this.value = value;
+        this.snapshot = null;
+        this.baseline = null;
+        return this;
+    }
+    
+    Message setSnapshot(Snapshot snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+    
+    public MessageType getType() { return type; }
+    public int getSenderId() { return senderId; }
+    public int getTimestamp() { return timestamp; }
+    public GameState getState() { return state; }
+    public long getValue() { return value; }
+    public Snapshot getSnapshot() { return snapshot; }
+    public Snapshot getBaseline() { return baseline; }
+}
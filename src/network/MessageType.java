@@ -0,0 +1,5 @@
+package network;
+
+enum MessageType {
+    CONNECT, REQUEST, REPLY, RELEASE, GAME_STATE, PLAYER, ACK, PICKUP, PING, PONG, INPUT, STATE_HASH
+}
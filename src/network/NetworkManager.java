@@ -2,45 +2,112 @@ package network;
 
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class NetworkManager {
     private int playerId;
     private int port;
     private List<PeerConnection> peers;
-    private ServerSocket serverSocket;
+    // One selector thread serves the listening socket and every peer
+    private Selector selector;
+    private Thread selectorThread;
+    private ServerSocketChannel serverChannel;
+    private Queue<PeerConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    // Peers whose outbound queue hit PeerConnection.HARD_LIMIT_BYTES, closed by the selector
+    private Queue<PeerConnection> stalledPeers = new ConcurrentLinkedQueue<>();
+    
+    // Player positions go over UDP, on the same port number as TCP: a lost datagram
+    // only loses one position, and never holds up the ordered mutex traffic on TCP
+    private DatagramChannel udpChannel;
+    private ByteBuffer udpReceiveBuffer = ByteBuffer.allocate(2048);
+    private ByteBuffer udpSendBuffer = ByteBuffer.allocate(256);
+    private int playerSequence = 0;
+    private static final int MAX_DATAGRAMS_PER_SELECT = 64;
+    // The receive path allocates nothing per frame: datagrams are decoded into these, and
+    // what the selector thread sends back (relays, REPLY, ACK, PICKUP answers) is built
+    // in outgoing. Both are encoded or handled before the next frame is read
+    private final Message udpMessage = new Message();
+    private final GameState udpPlayer = new GameState();
+    private final Snapshot udpSnapshot = new Snapshot();
+    private final Message outgoing = new Message();
+    // For sendInput and sendStateHash, under this
+    private final Message lockstepMessage = new Message();
+    private final Consumer<SelectionKey> onSelected = this::onSelected;
+    private static final long SHUTDOWN_TIMEOUT = 1000; // milliseconds
+    
+    // AREA OF INTEREST
+    // A peer gets every PLAYER update for players inside its interest area (its view plus
+    // a margin, centred on its own player) and only every FAR_DIVISOR-th for the rest;
+    // 0 means none at all. Peers whose position is not known yet get everything.
+    static final int FAR_DIVISOR = Integer.getInteger("game.net.farDivisor", 5);
+    private volatile int interestHalfWidth = Integer.MAX_VALUE, interestHalfHeight = Integer.MAX_VALUE;
+    
+    // Object state goes out as numbered snapshots, each encoded against the newest one
+    // the peer has acknowledged, so its size follows what changed rather than obj.length
+    private SnapshotHistory sentSnapshots = new SnapshotHistory();
+    private int nextSnapshotId = 0;
+    
+    // STAR TOPOLOGY
+    // An authoritative server (main.Server) owns the objects: clients send it their
+    // position and pickup requests only, and it relays positions and sends the object
+    // snapshots to everyone. Its CONNECT carries AUTHORITATIVE next to the UDP port.
+    static final long AUTHORITATIVE = 1L << 32;
+    private volatile boolean authoritative;
+    private volatile PeerConnection server;
     private LamportClock lamportClock;
-    private RequestQueue requestQueue;
-    private boolean running;
+    private volatile boolean running;
     private GameStateCallback callback;
     
+    // TELEMETRY: traffic, round trips, queues and critical section timings, over JMX.
+    // Every PING_INTERVAL each peer gets a PING carrying our clock in microseconds; it
+    // sends the value straight back in a PONG (0 turns pinging off)
+    final NetworkTelemetry telemetry = new NetworkTelemetry(this);
+    static final long PING_INTERVAL = Long.getLong("game.net.pingInterval", 1000) * 1000000L;
+    private long nextPing;
+    
     public NetworkManager(int playerId, int port, GameStateCallback callback) {
         this.playerId = playerId;
         this.port = port;
         this.callback = callback;
         this.peers = new CopyOnWriteArrayList<>();
         this.lamportClock = new LamportClock();
-        this.requestQueue = new RequestQueue();
         this.running = true;
     }
     
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port);
-        new Thread(this::acceptConnections).start();
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        udpChannel = DatagramChannel.open();
+        udpChannel.bind(new InetSocketAddress(port));
+        udpChannel.configureBlocking(false);
+        udpChannel.register(selector, SelectionKey.OP_READ);
+        telemetry.register();
+        nextPing = System.nanoTime();
+        selectorThread = NetworkThreads.newSelectorThread(this::runSelector, playerId);
+        selectorThread.start();
         System.out.println("Player " + playerId + " started on port " + port);
     }
     
     public void connectToPeer(String host, int peerPort, int peerId) {
         try {
-            Socket socket = new Socket(host, peerPort);
-            PeerConnection peer = new PeerConnection(socket, peerId, this);
+            // The connect itself blocks; everything after it goes through the selector
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, peerPort));
+            PeerConnection peer = new PeerConnection(channel, peerId, this);
             peers.add(peer);
-            peer.start();
+            pendingRegistrations.add(peer);
+            selector.wakeup();
             
-            // Send introduction
-            Message intro = new Message(MessageType.CONNECT, playerId, lamportClock.increment(), null);
-            peer.sendMessage(intro);
+            // Same port number for UDP on the other side, until its CONNECT says otherwise
+            peer.setUdpAddress(new InetSocketAddress(host, peerPort));
+            sendIntroduction(peer);
             
             System.out.println("Connected to peer " + peerId);
         } catch (IOException e) {
@@ -48,63 +115,294 @@ public class NetworkManager {
         }
     }
     
-    private void acceptConnections() {
+    private void runSelector() {
         while (running) {
             try {
-                Socket socket = serverSocket.accept();
-                PeerConnection peer = new PeerConnection(socket, -1, this);
-                peers.add(peer);
-                peer.start();
+                PeerConnection newPeer;
+                while ((newPeer = pendingRegistrations.poll()) != null) {
+                    newPeer.register(selector);
+                }
+                PeerConnection stalledPeer;
+                while ((stalledPeer = stalledPeers.poll()) != null) {
+                    System.err.println("Peer " + stalledPeer.getPeerId() + " is not reading, disconnecting");
+                    closePeer(stalledPeer);
+                }
+                selector.select(onSelected, selectTimeout());
+                long now = System.nanoTime();
+                if (PING_INTERVAL > 0 && now - nextPing >= 0) {
+                    ping(now);
+                    nextPing = now + PING_INTERVAL;
+                }
+                telemetry.logIfDue(now);
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("Error accepting connection: " + e.getMessage());
+                    System.err.println("Selector error: " + e.getMessage());
                 }
             }
         }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
     }
     
-    public void requestCriticalSection(CriticalSectionTask task) {
-        int timestamp = lamportClock.increment();
-        Request request = new Request(playerId, timestamp);
-        requestQueue.addRequest(request);
-        
-        // Broadcast REQUEST to all peers
-        Message msg = new Message(MessageType.REQUEST, playerId, timestamp, null);
-        broadcastMessage(msg);
-        
-        // Wait for replies from all peers
-        new Thread(() -> {
-            waitForReplies(request);
-            // Execute critical section
-            task.execute();
-            // Release critical section
-            releaseCriticalSection();
-        }).start();
-    }
-    
-    private void waitForReplies(Request request) {
-        while (!canEnterCriticalSection(request)) {
+    // Milliseconds until the next PING, or 0 (no timeout) when not pinging
+    private long selectTimeout() {
+        if (PING_INTERVAL <= 0) {
+            return NetworkTelemetry.LOG_INTERVAL > 0 ? NetworkTelemetry.LOG_INTERVAL / 1000000 : 0;
+        }
+        return Math.max(1, (nextPing - System.nanoTime()) / 1000000);
+    }
+    
+    private void ping(long now) {
+        outgoing.set(MessageType.PING, playerId, lamportClock.increment(), null, (int) (now / 1000));
+        for (PeerConnection peer : peers) {
+            peer.sendMessage(outgoing);
+        }
+    }
+    
+    private void onSelected(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            acceptConnection();
+            return;
+        }
+        if (key.channel() == udpChannel) {
+            receiveDatagrams();
+            return;
+        }
+        PeerConnection peer = (PeerConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                peer.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.onWritable();
+            }
+        } catch (IOException e) {
+            // EOF is the peer closing normally
+            if (running && !(e instanceof EOFException)) {
+                System.err.println("Error on peer " + peer.getPeerId() + ": " + e.getMessage());
+            }
+            closePeer(peer);
+        }
+    }
+    
+    private void acceptConnection() {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            PeerConnection peer = new PeerConnection(channel, -1, this);
+            peers.add(peer);
+            peer.register(selector);
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Introduce ourselves once per connection, with the port we take UDP on
+    private void sendIntroduction(PeerConnection peer) {
+        peer.setIntroduced();
+        Message intro = new Message(MessageType.CONNECT, playerId, lamportClock.increment(), null,
+                port | (authoritative ? AUTHORITATIVE : 0));
+        peer.sendMessage(intro);
+    }
+    
+    // Bounded, so a flood of datagrams can't starve the TCP peers on the same selector
+    private void receiveDatagrams() {
+        for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++) {
+            udpReceiveBuffer.clear();
             try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                if (udpChannel.receive(udpReceiveBuffer) == null) {
+                    return;
+                }
+                udpReceiveBuffer.flip();
+                int bytes = udpReceiveBuffer.remaining();
+                if (bytes < 4 || udpReceiveBuffer.getInt() != udpReceiveBuffer.remaining()
+                        || !WireCodec.decode(udpReceiveBuffer, udpMessage, udpPlayer, udpSnapshot)) {
+                    telemetry.malformed(bytes);
+                    continue;
+                }
+                // Only positions come this way, and only from peers we know
+                PeerConnection sender = findPeer(udpMessage.getSenderId());
+                telemetry.received(udpMessage.getType(), bytes, sender);
+                if (udpMessage.getType() == MessageType.PLAYER && sender != null) {
+                    handleMessage(udpMessage, sender);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error receiving datagram: " + e.getMessage());
+                }
+                return;
             }
         }
     }
     
-    private boolean canEnterCriticalSection(Request request) {
-        // Check if we have replies from all peers
-        if (request.getRepliesCount() < peers.size()) {
-            return false;
+    private PeerConnection findPeer(int peerId) {
+        for (PeerConnection peer : peers) {
+            if (peer.getPeerId() == peerId) {
+                return peer;
+            }
         }
-        // Check if our request has the earliest timestamp
-        return requestQueue.isEarliest(request);
+        return null;
     }
     
-    private void releaseCriticalSection() {
-        requestQueue.removeRequest(playerId);
-        Message msg = new Message(MessageType.RELEASE, playerId, lamportClock.increment(), null);
-        broadcastMessage(msg);
+    // Any thread, possibly holding locks closePeer takes: hand the peer to the selector
+    void dropStalledPeer(PeerConnection peer) {
+        stalledPeers.add(peer);
+        selector.wakeup();
+    }
+    
+    void closePeer(PeerConnection peer) {
+        if (peers.remove(peer)) {
+            System.out.println("Peer " + peer.getPeerId() + " disconnected");
+        }
+        if (server == peer) {
+            server = null;
+        }
+        forgetPeer(peer);
+        try {
+            peer.close();
+        } catch (IOException e) {
+            System.err.println("Error closing peer: " + e.getMessage());
+        }
+    }
+    
+    // CRITICAL SECTIONS (Ricart-Agrawala), one per lock key (an object index, say)
+    // A request goes to every peer; each answers with a REPLY right away, unless it is in
+    // the critical section or asked first itself, in which case the REPLY is deferred
+    // until it leaves. Holding every REPLY means entry: 2(N-1) messages, no RELEASE.
+    // Each key has its own RequestQueue, so only requests for the same key wait on each
+    // other; per key, only one request per node is out at a time.
+    public static final int GLOBAL_LOCK = -1;
+    private final Object mutex = new Object();
+    private final Map<Integer, RequestQueue> locks = new HashMap<>();
+    // Tasks run on NetworkThreads.TASKS rather than on the selector thread that grants
+    // the entry; tasks for different keys may run at the same time
+    
+    // Completes once we hold the critical section for key; call releaseCriticalSection after.
+    // It completes on a NetworkThreads.TASKS thread, never under the lock or on the
+    // selector, so stages chained on it without an executor are free to block or lock again
+    public CompletableFuture<Void> acquireCriticalSection(int key) {
+        LockEntry entry = new LockEntry();
+        synchronized (mutex) {
+            RequestQueue lock = locks.computeIfAbsent(key, RequestQueue::new);
+            if (lock.requesting) {
+                lock.queuedEntries.add(entry);
+            } else {
+                startRequest(lock, entry);
+            }
+        }
+        return entry;
+    }
+    
+    // Runs task inside the critical section for key and releases it after; never blocks the caller
+    public CompletableFuture<Void> requestCriticalSection(int key, CriticalSectionTask task) {
+        return acquireCriticalSection(key)
+                .thenRunAsync(task::execute, NetworkThreads.TASKS)
+                .whenComplete((result, error) -> {
+                    if (error != null && running) {
+                        System.err.println("Critical section task failed: " + error.getMessage());
+                    }
+                    releaseCriticalSection(key);
+                });
+    }
+    
+    public CompletableFuture<Void> requestCriticalSection(CriticalSectionTask task) {
+        return requestCriticalSection(GLOBAL_LOCK, task);
+    }
+    
+    public void releaseCriticalSection(int key) {
+        synchronized (mutex) {
+            RequestQueue lock = locks.get(key);
+            if (lock == null || !lock.inCriticalSection) {
+                return;
+            }
+            lock.inCriticalSection = false;
+            lock.requesting = false;
+            telemetry.criticalSectionHold.record(System.nanoTime() - lock.enteredAt);
+            Message reply = new Message(MessageType.REPLY, playerId, lamportClock.increment(), null, key);
+            for (PeerConnection peer : lock.deferredReplies) {
+                peer.sendMessage(reply);
+            }
+            lock.deferredReplies.clear();
+            LockEntry next = lock.queuedEntries.poll();
+            if (next != null) {
+                startRequest(lock, next);
+            } else {
+                locks.remove(key);
+            }
+        }
+    }
+    
+    // Holding mutex
+    private void startRequest(RequestQueue lock, LockEntry entry) {
+        lock.requesting = true;
+        lock.timestamp = lamportClock.increment();
+        lock.pendingEntry = entry;
+        lock.awaitingReplies.clear();
+        lock.awaitingReplies.addAll(peers);
+        if (lock.awaitingReplies.isEmpty()) {
+            enterCriticalSection(lock);
+            return;
+        }
+        Message msg = new Message(MessageType.REQUEST, playerId, lock.timestamp, null, lock.key);
+        for (PeerConnection peer : lock.awaitingReplies) {
+            peer.sendMessage(msg);
+        }
+    }
+    
+    // Holding mutex
+    private void enterCriticalSection(RequestQueue lock) {
+        lock.inCriticalSection = true;
+        LockEntry entry = lock.pendingEntry;
+        lock.pendingEntry = null;
+        lock.enteredAt = System.nanoTime();
+        telemetry.criticalSectionWait.record(lock.enteredAt - entry.requestedAt);
+        entry.completeAsync(() -> null, NetworkThreads.TASKS);
+    }
+    
+    private void onRequest(int key, int timestamp, int senderId, PeerConnection sender) {
+        synchronized (mutex) {
+            // Ours goes first if we are inside, or asked earlier (ties broken by id)
+            RequestQueue lock = locks.get(key);
+            boolean oursFirst = lock != null && (lock.inCriticalSection || (lock.requesting
+                    && (lock.timestamp < timestamp || (lock.timestamp == timestamp && playerId < senderId))));
+            if (oursFirst) {
+                lock.deferredReplies.add(sender);
+                return;
+            }
+        }
+        sender.sendMessage(outgoing.set(MessageType.REPLY, playerId, lamportClock.increment(), null, key));
+    }
+    
+    private void onReply(int key, PeerConnection sender) {
+        synchronized (mutex) {
+            RequestQueue lock = locks.get(key);
+            if (lock != null && lock.pendingEntry != null && lock.awaitingReplies.remove(sender)
+                    && lock.awaitingReplies.isEmpty()) {
+                enterCriticalSection(lock);
+            }
+        }
+    }
+    
+    // A peer that went away can no longer object, nor be owed a REPLY
+    private void forgetPeer(PeerConnection peer) {
+        synchronized (mutex) {
+            for (RequestQueue lock : locks.values()) {
+                lock.deferredReplies.remove(peer);
+                if (lock.pendingEntry != null && lock.awaitingReplies.remove(peer) && lock.awaitingReplies.isEmpty()) {
+                    enterCriticalSection(lock);
+                }
+            }
+        }
     }
     
     public void handleMessage(Message msg, PeerConnection sender) {
@@ -113,234 +411,368 @@ public class NetworkManager {
         switch (msg.getType()) {
             case CONNECT:
                 sender.setPeerId(msg.getSenderId());
+                int udpPort = (int) msg.getValue();
+                if (udpPort > 0) {
+                    sender.setUdpAddress(new InetSocketAddress(sender.getRemoteAddress(), udpPort));
+                }
+                if ((msg.getValue() & AUTHORITATIVE) != 0) {
+                    server = sender;
+                }
+                if (!sender.isIntroduced()) {
+                    sendIntroduction(sender);
+                }
                 System.out.println("Peer " + msg.getSenderId() + " connected");
                 break;
                 
             case REQUEST:
-                Request req = new Request(msg.getSenderId(), msg.getTimestamp());
-                requestQueue.addRequest(req);
-                // Send REPLY
-                Message reply = new Message(MessageType.REPLY, playerId, lamportClock.increment(), null);
-                sender.sendMessage(reply);
+                onRequest((int) msg.getValue(), msg.getTimestamp(), msg.getSenderId(), sender);
                 break;
                 
             case REPLY:
-                requestQueue.addReply(msg.getSenderId());
+                onReply((int) msg.getValue(), sender);
                 break;
                 
             case RELEASE:
-                requestQueue.removeRequest(msg.getSenderId());
+                // Lamport-era message: deferred REPLYs do its job now
+                break;
+                
+            case PLAYER:
+                // Datagrams can arrive late or out of order: only the newest one counts.
+                // Relayed ones share the server's connection, so this is per player
+                GameState player = msg.getState();
+                if (!sender.acceptPlayerSequence(player.playerId, (int) msg.getValue())) {
+                    break;
+                }
+                if (player.playerId == sender.getPeerId()) {
+                    sender.setView(player.worldX, player.worldY);
+                }
+                if (authoritative) {
+                    sendPlayer(outgoing.set(MessageType.PLAYER, playerId, lamportClock.increment(), player, msg.getValue()), sender);
+                }
+                if (callback != null) {
+                    callback.onGameStateUpdate(player);
+                }
+                break;
+                
+            case PICKUP:
+                // Answered with the index if granted, ~index if not
+                int index = (int) msg.getValue();
+                if (authoritative && callback != null) {
+                    boolean granted = callback.onPickupRequest(msg.getSenderId(), index);
+                    // Goes out before the snapshot that removes the object, on the same stream
+                    sender.sendMessage(outgoing.set(MessageType.PICKUP, playerId, lamportClock.increment(), null,
+                            granted ? index : ~index));
+                } else if (sender == server && callback != null) {
+                    callback.onPickupResult(index < 0 ? ~index : index, index >= 0);
+                }
                 break;
                 
             case GAME_STATE:
+                applySnapshot(msg.getSnapshot(), sender);
+                break;
+                
+            case ACK:
+                sender.acknowledgeSnapshot((int) msg.getValue());
+                break;
+                
+            case PING:
+                sender.sendMessage(outgoing.set(MessageType.PONG, playerId, lamportClock.increment(), null, msg.getValue()));
+                break;
+                
+            case PONG:
+                // Our own clock came back: wrap-around safe in 32 bits
+                int micros = (int) (System.nanoTime() / 1000) - (int) msg.getValue();
+                if (micros >= 0) {
+                    sender.setRttMicros(micros);
+                    telemetry.rtt.record(micros * 1000L);
+                }
+                break;
+                
+            case INPUT:
                 if (callback != null) {
-                    callback.onGameStateUpdate(msg.getData());
+                    callback.onInput(msg.getSenderId(), (int) (msg.getValue() >> 8), (int) msg.getValue() & 0xff);
+                }
+                break;
+                
+            case STATE_HASH:
+                if (callback != null) {
+                    callback.onStateHash(msg.getSenderId(), (int) (msg.getValue() >> 32), (int) msg.getValue());
                 }
                 break;
         }
     }
     
-    public void broadcastGameState(String gameState) {
-        Message msg = new Message(MessageType.GAME_STATE, playerId, lamportClock.increment(), gameState);
-        broadcastMessage(msg);
-    }
-    
-    private void broadcastMessage(Message msg) {
-        for (PeerConnection peer : peers) {
-            peer.sendMessage(msg);
+    private void applySnapshot(Snapshot decoded, PeerConnection sender) {
+        Snapshot baseline = sender.receivedSnapshots.get(decoded.baselineId);
+        if (decoded.baselineId != Snapshot.KEYFRAME && baseline == null) {
+            // We no longer have what it was encoded against; start over from a keyframe
+            sender.sendMessage(outgoing.set(MessageType.ACK, playerId, lamportClock.increment(), null, Snapshot.KEYFRAME));
+            return;
+        }
+        Snapshot full = sender.receivedSnapshots.apply(decoded, baseline);
+        sender.sendMessage(outgoing.set(MessageType.ACK, playerId, lamportClock.increment(), null, full.id));
+        if (callback != null) {
+            sender.objectState.setObjects(full, decoded);
+            callback.onGameStateUpdate(sender.objectState);
         }
     }
     
-    public void shutdown() {
-        running = false;
-        try {
-            if (serverSocket != null) serverSocket.close();
-            for (PeerConnection peer : peers) {
-                peer.close();
-            }
-        } catch (IOException e) {
-            System.err.println("Error during shutdown: " + e.getMessage());
+    // The player part goes out as a PLAYER datagram, the object part as GAME_STATE on TCP.
+    // With a server, the objects are its business and only the player part is sent
+    public void broadcastGameState(GameState gameState) {
+        sendPlayerUpdate(gameState);
+        if (server == null) {
+            sendObjectSnapshot(gameState);
         }
     }
     
-    public int getPlayerId() {
-        return playerId;
+    // Server side: the authoritative objects, to every client
+    public void broadcastObjects(GameState gameState) {
+        sendObjectSnapshot(gameState);
     }
     
-    public interface GameStateCallback {
-        void onGameStateUpdate(String data);
+    // Half size in pixels of the area around a peer's player it wants every update for
+    public void setInterestArea(int halfWidth, int halfHeight) {
+        this.interestHalfWidth = halfWidth;
+        this.interestHalfHeight = halfHeight;
     }
     
-    public interface CriticalSectionTask {
-        void execute();
+    public void setAuthoritative(boolean authoritative) {
+        this.authoritative = authoritative;
     }
-}
-
-class LamportClock {
-    private int time;
     
-    public LamportClock() {
-        this.time = 0;
+    public boolean hasServer() {
+        return server != null;
     }
     
-    public synchronized int increment() {
-        return ++time;
+    // LOCKSTEP (main.Lockstep): only the input goes out, to every peer, on TCP since
+    // every tick of it is needed
+    public synchronized void sendInput(int tick, int bits) {
+        broadcastMessage(lockstepMessage.set(MessageType.INPUT, playerId, lamportClock.increment(), null,
+                (long) tick << 8 | (bits & 0xff)));
     }
     
-    public synchronized void update(int receivedTime) {
-        time = Math.max(time, receivedTime) + 1;
+    public synchronized void sendStateHash(int tick, int hash) {
+        broadcastMessage(lockstepMessage.set(MessageType.STATE_HASH, playerId, lamportClock.increment(), null,
+                (long) tick << 32 | (hash & 0xffffffffL)));
     }
     
-    public synchronized int getTime() {
-        return time;
+    // Ids of the peers connected now, once they are known
+    public int[] getPeerIds() {
+        int[] ids = new int[peers.size()];
+        int count = 0;
+        for (PeerConnection peer : peers) {
+            if (peer.getPeerId() >= 0 && count < ids.length) {
+                ids[count++] = peer.getPeerId();
+            }
+        }
+        return Arrays.copyOf(ids, count);
     }
-}
-
-class Request implements Comparable<Request> {
-    private int processId;
-    private int timestamp;
-    private Set<Integer> replies;
     
-    public Request(int processId, int timestamp) {
-        this.processId = processId;
-        this.timestamp = timestamp;
-        this.replies = ConcurrentHashMap.newKeySet();
+    // Client side: ask the server for an object; onPickupResult follows
+    public void requestPickup(int index) {
+        PeerConnection target = server;
+        if (target != null) {
+            target.sendMessage(new Message(MessageType.PICKUP, playerId, lamportClock.increment(), null, index));
+        }
     }
     
-    public void addReply(int peerId) {
-        replies.add(peerId);
+    private synchronized void sendObjectSnapshot(GameState gameState) {
+        Snapshot current = sentSnapshots.latest();
+        if (current == null || !current.matches(gameState.objectCount, gameState.objectsPresent)) {
+            current = sentSnapshots.put(nextSnapshotId++, gameState.objectCount, gameState.objectsPresent);
+        }
+        for (PeerConnection peer : peers) {
+            // TCP delivers it, so a peer is only sent each snapshot once
+            if (peer.getLastSentSnapshot() == current.id) {
+                continue;
+            }
+            Snapshot baseline = sentSnapshots.get(peer.getAckedSnapshot());
+            // If dropped, it is tried again with the next one
+            if (peer.sendMessage(new Message(MessageType.GAME_STATE, playerId, lamportClock.increment(), current, baseline))) {
+                peer.setLastSentSnapshot(current.id);
+            }
+        }
     }
     
-    public int getRepliesCount() {
-        return replies.size();
+    private synchronized void sendPlayerUpdate(GameState gameState) {
+        gameState.sentAt = (int) (System.nanoTime() / 1000000);
+        sendPlayer(new Message(MessageType.PLAYER, playerId, lamportClock.increment(), gameState, ++playerSequence), null);
     }
     
-    public int getProcessId() {
-        return processId;
+    // To every peer but except (may be null)
+    private synchronized void sendPlayer(Message msg, PeerConnection except) {
+        while (true) {
+            udpSendBuffer.clear();
+            try {
+                WireCodec.encode(msg, udpSendBuffer);
+                break;
+            } catch (BufferOverflowException e) {
+                udpSendBuffer = ByteBuffer.allocate(udpSendBuffer.capacity() * 2);
+            }
+        }
+        udpSendBuffer.flip();
+        GameState player = msg.getState();
+        boolean farUpdate = FAR_DIVISOR > 0 && msg.getValue() % FAR_DIVISOR == 0;
+        for (PeerConnection peer : peers) {
+            if (peer == except) {
+                continue;
+            }
+            // The server sees everything; everyone else only what is near them
+            if (peer != server && !farUpdate && !peer.isInterested(player.worldX, player.worldY,
+                    interestHalfWidth, interestHalfHeight)) {
+                continue;
+            }
+            InetSocketAddress address = peer.getUdpAddress();
+            if (address == null || udpChannel == null) {
+                // No UDP address yet: fall back to the TCP stream
+                peer.sendMessage(msg);
+                continue;
+            }
+            try {
+                udpSendBuffer.rewind();
+                telemetry.sent(MessageType.PLAYER, udpChannel.send(udpSendBuffer, address), peer);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error sending datagram: " + e.getMessage());
+                }
+            }
+        }
     }
     
-    public int getTimestamp() {
-        return timestamp;
+    private void broadcastMessage(Message msg) {
+        for (PeerConnection peer : peers) {
+            peer.sendMessage(msg);
+        }
     }
     
-    @Override
-    public int compareTo(Request other) {
-        if (this.timestamp != other.timestamp) {
-            return Integer.compare(this.timestamp, other.timestamp);
+    // In order: stop accepting, stop the selector and wait for it, close the peers, then
+    // fail whatever still waits for a critical section. Tasks already running finish on
+    // their own; the task executor is shared and outlives this manager
+    public void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        telemetry.unregister();
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error during shutdown: " + e.getMessage());
+        }
+        if (selectorThread != null && selectorThread != Thread.currentThread()) {
+            selector.wakeup();
+            try {
+                selectorThread.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (udpChannel != null) udpChannel.close();
+            for (PeerConnection peer : peers) {
+                peer.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error during shutdown: " + e.getMessage());
+        }
+        peers.clear();
+        // Failed outside the lock, since whatever is chained on them runs right here
+        List<LockEntry> waiting = new ArrayList<>();
+        synchronized (mutex) {
+            for (RequestQueue lock : locks.values()) {
+                if (lock.pendingEntry != null) {
+                    waiting.add(lock.pendingEntry);
+                }
+                waiting.addAll(lock.queuedEntries);
+            }
+            locks.clear();
+        }
+        CancellationException closed = new CancellationException("Network shut down");
+        for (LockEntry entry : waiting) {
+            entry.completeExceptionally(closed);
         }
-        return Integer.compare(this.processId, other.processId);
     }
-}
-
-class RequestQueue {
-    private PriorityQueue<Request> queue;
-    private Map<Integer, Request> requestMap;
     
-    public RequestQueue() {
-        this.queue = new PriorityQueue<>();
-        this.requestMap = new ConcurrentHashMap<>();
+    // Thread counts of the network layer as a whole, for logs and load tests
+    public static String describeThreads() {
+        return NetworkThreads.describe();
     }
     
-    public synchronized void addRequest(Request request) {
-        queue.add(request);
-        requestMap.put(request.getProcessId(), request);
+    public int getPlayerId() {
+        return playerId;
     }
     
-    public synchronized void removeRequest(int processId) {
-        Request req = requestMap.remove(processId);
-        if (req != null) {
-            queue.remove(req);
-        }
+    int getPort() {
+        return port;
     }
     
-    public synchronized void addReply(int peerId) {
-        for (Request req : requestMap.values()) {
-            req.addReply(peerId);
-        }
+    List<PeerConnection> getPeers() {
+        return peers;
     }
     
-    public synchronized boolean isEarliest(Request request) {
-        return !queue.isEmpty() && queue.peek().equals(request);
+    public NetworkTelemetryMXBean getTelemetry() {
+        return telemetry;
     }
-}
-
-enum MessageType {
-    CONNECT, REQUEST, REPLY, RELEASE, GAME_STATE
-}
-
-class Message implements Serializable {
-    private MessageType type;
-    private int senderId;
-    private int timestamp;
-    private String data;
-    
-    public Message(MessageType type, int senderId, int timestamp, String data) {
-        this.type = type;
-        this.senderId = senderId;
-        this.timestamp = timestamp;
-        this.data = data;
-    }
-    
-    public MessageType getType() { return type; }
-    public int getSenderId() { return senderId; }
-    public int getTimestamp() { return timestamp; }
-    public String getData() { return data; }
-}
-
-class PeerConnection {
-    private Socket socket;
-    private int peerId;
-    private NetworkManager manager;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
-    private boolean running;
-    
-    public PeerConnection(Socket socket, int peerId, NetworkManager manager) throws IOException {
-        this.socket = socket;
-        this.peerId = peerId;
-        this.manager = manager;
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
-        this.running = true;
+    
+    public long getMessagesSent() {
+        return telemetry.getMessagesSent();
     }
     
-    public void start() {
-        new Thread(this::receiveMessages).start();
+    public long getBytesSent() {
+        return telemetry.getBytesSent();
     }
     
-    private void receiveMessages() {
-        while (running) {
-            try {
-                Message msg = (Message) in.readObject();
-                manager.handleMessage(msg, this);
-            } catch (IOException | ClassNotFoundException e) {
-                if (running) {
-                    System.err.println("Error receiving message: " + e.getMessage());
-                    running = false;
-                }
-            }
-        }
+    public long getMessagesReceived() {
+        return telemetry.getMessagesReceived();
     }
     
-    public void sendMessage(Message msg) {
-        try {
-            out.writeObject(msg);
-            out.flush();
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-        }
+    public long getBytesReceived() {
+        return telemetry.getBytesReceived();
     }
     
-    public void setPeerId(int peerId) {
-        this.peerId = peerId;
+    public long getFramesCoalesced() {
+        return telemetry.getFramesCoalesced();
     }
     
-    public int getPeerId() {
-        return peerId;
+    public long getFramesDropped() {
+        return telemetry.getFramesDropped();
     }
     
-    public void close() throws IOException {
-        running = false;
-        socket.close();
+    public long getMalformedFrames() {
+        return telemetry.getMalformedFrames();
+    }
+    
+    // Bytes waiting in the outbound queues of every peer, now and at most so far (per peer)
+    public int getQueuedBytes() {
+        return telemetry.getQueuedBytes();
+    }
+    
+    public int getPeakQueuedBytes() {
+        return telemetry.getPeakQueuedBytes();
+    }
+    
+    public interface GameStateCallback {
+        void onGameStateUpdate(GameState state);
+        
+        // Server side: may playerId have object index? Granting removes it
+        default boolean onPickupRequest(int playerId, int index) {
+            return false;
+        }
+        
+        // Client side: the server's answer about object index
+        default void onPickupResult(int index, boolean granted) {
+        }
+        
+        // Lockstep: playerId's input bits for tick, and its state hash after tick
+        default void onInput(int playerId, int tick, int bits) {
+        }
+        
+        default void onStateHash(int playerId, int tick, int hash) {
+        }
     }
-}
\ No newline at end of file
+    
+    public interface CriticalSectionTask {
+        void execute();
+    }
+}
@@ -0,0 +1,336 @@
+package network;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import util.Histogram;
+
+// Counters and timings of one NetworkManager: traffic per message type, per peer round
+// trip (PING/PONG), outbound queues and how long critical sections are waited for and
+// held. Published as a platform MXBean while the manager runs and, with
+// -Dgame.net.statsInterval=<seconds>, logged as one line that often.
+// Recording never allocates and is safe from any thread.
+class NetworkTelemetry implements NetworkTelemetryMXBean {
+    static final long LOG_INTERVAL = Long.getLong("game.net.statsInterval", 0) * 1000000000L;
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final NetworkManager manager;
+
+    // Frames and bytes over TCP and UDP together (length prefixes included)
+    final LongAdder messagesSent = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder messagesReceived = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder[] sentByType = adders();
+    private final LongAdder[] bytesSentByType = adders();
+    private final LongAdder[] receivedByType = adders();
+    private final LongAdder[] bytesReceivedByType = adders();
+    // Outbound frames superseded in a peer's queue by a newer one, or dropped when it was full
+    final LongAdder framesCoalesced = new LongAdder();
+    final LongAdder framesDropped = new LongAdder();
+    // Frames received that could not be decoded; bad datagrams are dropped, a bad TCP
+    // frame is skipped, or closes the connection if its length is off
+    final LongAdder malformedFrames = new LongAdder();
+
+    // Nanoseconds: PING to PONG, request to entry and entry to release
+    final Histogram rtt = new Histogram();
+    final Histogram criticalSectionWait = new Histogram();
+    final Histogram criticalSectionHold = new Histogram();
+
+    private ObjectName name;
+    // Totals at the previous log line (selector thread only)
+    private long lastLog = System.nanoTime();
+    private long lastMessagesSent, lastBytesSent, lastMessagesReceived, lastBytesReceived;
+
+    NetworkTelemetry(NetworkManager manager) {
+        this.manager = manager;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[TYPES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void sent(MessageType type, int bytes, PeerConnection peer) {
+        messagesSent.increment();
+        bytesSent.add(bytes);
+        sentByType[type.ordinal()].increment();
+        bytesSentByType[type.ordinal()].add(bytes);
+        peer.bytesOut.add(bytes);
+    }
+
+    // A queued frame that was cut out before it went anywhere
+    void unsent(MessageType type, int bytes, PeerConnection peer) {
+        messagesSent.decrement();
+        bytesSent.add(-bytes);
+        sentByType[type.ordinal()].decrement();
+        bytesSentByType[type.ordinal()].add(-bytes);
+        peer.bytesOut.add(-bytes);
+    }
+
+    void received(MessageType type, int bytes, PeerConnection peer) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+        receivedByType[type.ordinal()].increment();
+        bytesReceivedByType[type.ordinal()].add(bytes);
+        if (peer != null) {
+            peer.bytesIn.add(bytes);
+        }
+    }
+
+    void malformed(int bytes) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+        malformedFrames.increment();
+    }
+
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("game.network:type=NetworkManager,player=" + manager.getPlayerId()
+                    + ",port=" + manager.getPort());
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Could not publish network telemetry: " + e.getMessage());
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("Could not withdraw network telemetry: " + e.getMessage());
+        }
+        name = null;
+    }
+
+    // Selector thread: the periodic log line, if it is on and due
+    void logIfDue(long now) {
+        if (LOG_INTERVAL <= 0 || now - lastLog < LOG_INTERVAL) {
+            return;
+        }
+        double seconds = (now - lastLog) / 1e9;
+        long sent = messagesSent.sum(), sentBytes = bytesSent.sum();
+        long received = messagesReceived.sum(), receivedBytes = bytesReceived.sum();
+        System.out.printf(Locale.ROOT,
+                "net %d: %d peers, out %.0f msg/s %.1f KB/s, in %.0f msg/s %.1f KB/s, rtt p50 %.2f p99 %.2f ms,"
+                        + " cs wait p99 %.2f hold p99 %.2f ms, queued %d B, dropped %d, malformed %d%n",
+                manager.getPlayerId(), getPeerCount(), (sent - lastMessagesSent) / seconds,
+                (sentBytes - lastBytesSent) / 1024.0 / seconds, (received - lastMessagesReceived) / seconds,
+                (receivedBytes - lastBytesReceived) / 1024.0 / seconds, getRttP50Millis(), getRttP99Millis(),
+                getCriticalSectionWaitP99Millis(), getCriticalSectionHoldP99Millis(), getQueuedBytes(),
+                framesDropped.sum(), malformedFrames.sum());
+        lastLog = now;
+        lastMessagesSent = sent;
+        lastBytesSent = sentBytes;
+        lastMessagesReceived = received;
+        lastBytesReceived = receivedBytes;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> map = new TreeMap<>();
+        for (MessageType type : TYPES) {
+            map.put(type.name(), adders[type.ordinal()].sum());
+        }
+        return map;
+    }
+
+    private Map<String, Long> byPeer(ToLongFunction<PeerConnection> value) {
+        Map<String, Long> map = new TreeMap<>();
+        for (PeerConnection peer : manager.getPeers()) {
+            map.put(String.valueOf(peer.getPeerId()), value.applyAsLong(peer));
+        }
+        return map;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    @Override
+    public int getPlayerId() {
+        return manager.getPlayerId();
+    }
+
+    @Override
+    public int getPeerCount() {
+        return manager.getPeers().size();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSentByType() {
+        return byType(sentByType);
+    }
+
+    @Override
+    public Map<String, Long> getBytesSentByType() {
+        return byType(bytesSentByType);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceivedByType() {
+        return byType(receivedByType);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReceivedByType() {
+        return byType(bytesReceivedByType);
+    }
+
+    @Override
+    public long getFramesCoalesced() {
+        return framesCoalesced.sum();
+    }
+
+    @Override
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    @Override
+    public long getMalformedFrames() {
+        return malformedFrames.sum();
+    }
+
+    @Override
+    public int getQueuedBytes() {
+        int queued = 0;
+        for (PeerConnection peer : manager.getPeers()) {
+            queued += peer.getQueuedBytes();
+        }
+        return queued;
+    }
+
+    @Override
+    public int getPeakQueuedBytes() {
+        int peak = 0;
+        for (PeerConnection peer : manager.getPeers()) {
+            peak = Math.max(peak, peer.getPeakQueuedBytes());
+        }
+        return peak;
+    }
+
+    // Peers that have not answered a PING yet are left out
+    @Override
+    public Map<String, Double> getPeerRttMillis() {
+        Map<String, Double> map = new TreeMap<>();
+        for (PeerConnection peer : manager.getPeers()) {
+            int micros = peer.getRttMicros();
+            if (micros >= 0) {
+                map.put(String.valueOf(peer.getPeerId()), micros / 1000.0);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Integer> getPeerQueuedBytes() {
+        Map<String, Integer> map = new TreeMap<>();
+        for (PeerConnection peer : manager.getPeers()) {
+            map.put(String.valueOf(peer.getPeerId()), peer.getQueuedBytes());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getPeerBytesSent() {
+        return byPeer(peer -> peer.bytesOut.sum());
+    }
+
+    @Override
+    public Map<String, Long> getPeerBytesReceived() {
+        return byPeer(peer -> peer.bytesIn.sum());
+    }
+
+    @Override
+    public double getRttP50Millis() {
+        return millis(rtt.percentile(0.50));
+    }
+
+    @Override
+    public double getRttP99Millis() {
+        return millis(rtt.percentile(0.99));
+    }
+
+    @Override
+    public long getCriticalSectionEntries() {
+        return criticalSectionWait.count();
+    }
+
+    @Override
+    public double getCriticalSectionWaitP50Millis() {
+        return millis(criticalSectionWait.percentile(0.50));
+    }
+
+    @Override
+    public double getCriticalSectionWaitP99Millis() {
+        return millis(criticalSectionWait.percentile(0.99));
+    }
+
+    @Override
+    public double getCriticalSectionWaitMaxMillis() {
+        return millis(criticalSectionWait.max());
+    }
+
+    @Override
+    public double getCriticalSectionHoldP50Millis() {
+        return millis(criticalSectionHold.percentile(0.50));
+    }
+
+    @Override
+    public double getCriticalSectionHoldP99Millis() {
+        return millis(criticalSectionHold.percentile(0.99));
+    }
+
+    @Override
+    public double getCriticalSectionHoldMaxMillis() {
+        return millis(criticalSectionHold.max());
+    }
+
+    @Override
+    public String getThreads() {
+        return NetworkThreads.describe();
+    }
+
+    @Override
+    public void resetTimings() {
+        rtt.reset();
+        criticalSectionWait.reset();
+        criticalSectionHold.reset();
+    }
+}
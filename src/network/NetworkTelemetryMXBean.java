@@ -0,0 +1,69 @@
+package network;
+
+import java.util.Map;
+
+// What a NetworkManager publishes over JMX (jconsole, VisualVM, jcmd, ...), as
+// game.network:type=NetworkManager,player=<id>,port=<port>. Per type maps are keyed by
+// MessageType name, per peer maps by peer id; times are in milliseconds.
+public interface NetworkTelemetryMXBean {
+    int getPlayerId();
+
+    int getPeerCount();
+
+    long getMessagesSent();
+
+    long getBytesSent();
+
+    long getMessagesReceived();
+
+    long getBytesReceived();
+
+    Map<String, Long> getMessagesSentByType();
+
+    Map<String, Long> getBytesSentByType();
+
+    Map<String, Long> getMessagesReceivedByType();
+
+    Map<String, Long> getBytesReceivedByType();
+
+    long getFramesCoalesced();
+
+    long getFramesDropped();
+
+    long getMalformedFrames();
+
+    int getQueuedBytes();
+
+    int getPeakQueuedBytes();
+
+    Map<String, Double> getPeerRttMillis();
+
+    Map<String, Integer> getPeerQueuedBytes();
+
+    Map<String, Long> getPeerBytesSent();
+
+    Map<String, Long> getPeerBytesReceived();
+
+    double getRttP50Millis();
+
+    double getRttP99Millis();
+
+    long getCriticalSectionEntries();
+
+    double getCriticalSectionWaitP50Millis();
+
+    double getCriticalSectionWaitP99Millis();
+
+    double getCriticalSectionWaitMaxMillis();
+
+    double getCriticalSectionHoldP50Millis();
+
+    double getCriticalSectionHoldP99Millis();
+
+    double getCriticalSectionHoldMaxMillis();
+
+    String getThreads();
+
+    // Starts the RTT and critical section histograms over
+    void resetTimings();
+}
@@ -0,0 +1,85 @@
+package network;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Every thread the network layer runs on. A NetworkManager has exactly one thread of
+// its own, the selector, whatever the number of peers; waiting for a critical section
+// takes no thread at all (it is a future completed on the task executor). The tasks
+// run inside critical sections share that one executor for the whole JVM: a virtual
+// thread per task where the runtime has them (Java 21+), otherwise up to TASK_THREADS
+// named daemon threads, started on demand and stopped after a while idle.
+final class NetworkThreads {
+    static final int TASK_THREADS = Integer.getInteger("game.net.taskThreads", 4);
+    private static final long IDLE_SECONDS = 30;
+
+    static final boolean VIRTUAL;
+    static final ExecutorService TASKS;
+    // Null when the tasks run on virtual threads
+    private static final ThreadPoolExecutor pool;
+    private static final AtomicInteger selectors = new AtomicInteger();
+
+    static {
+        ExecutorService virtual = null;
+        if (Boolean.parseBoolean(System.getProperty("game.net.virtualThreads", "true"))) {
+            try {
+                // Looked up at run time so the game still builds and runs on Java 17
+                virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // No virtual threads here
+            }
+        }
+        VIRTUAL = virtual != null;
+        if (VIRTUAL) {
+            pool = null;
+            TASKS = virtual;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            pool = new ThreadPoolExecutor(TASK_THREADS, TASK_THREADS, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread thread = new Thread(r, "network-task-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            TASKS = pool;
+        }
+    }
+
+    private NetworkThreads() {
+    }
+
+    // A platform thread: a selector blocked in select() would pin a virtual one anyway
+    static Thread newSelectorThread(Runnable loop, int playerId) {
+        Thread thread = new Thread(() -> {
+            selectors.incrementAndGet();
+            try {
+                loop.run();
+            } finally {
+                selectors.decrementAndGet();
+            }
+        }, "network-selector-" + playerId);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    static int selectorThreads() {
+        return selectors.get();
+    }
+
+    // Live task threads; virtual ones are not counted
+    static int taskThreads() {
+        return pool == null ? 0 : pool.getPoolSize();
+    }
+
+    static String describe() {
+        String tasks = VIRTUAL ? "virtual" : taskThreads() + "/" + TASK_THREADS + " (peak " + pool.getLargestPoolSize() + ")";
+        return "threads: " + ManagementFactory.getThreadMXBean().getThreadCount() + " live, "
+                + selectorThreads() + " selectors, tasks " + tasks;
+    }
+}
@@ -0,0 +1,307 @@
+package network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// One peer on a non-blocking channel, driven by the NetworkManager selector thread.
+// Sends never block nor touch the socket: frames are appended to the write buffer,
+// the outbound queue, and the selector thread writes whatever has piled up in one go
+// once the channel is writable.
+// The queue is bounded. A GAME_STATE that has not started going out is replaced by a
+// newer one; past MAX_QUEUED_BYTES, state (GAME_STATE and PLAYER) is dropped, since a
+// newer one follows anyway. Everything else (the critical section traffic above all) is
+// never dropped: a peer that lets HARD_LIMIT_BYTES pile up is disconnected instead.
+class PeerConnection {
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    static final int MAX_QUEUED_BYTES = Integer.getInteger("game.net.maxQueuedKB", 256) * 1024;
+    static final int HARD_LIMIT_BYTES = 4 * MAX_QUEUED_BYTES;
+    
+    private SocketChannel channel;
+    private SelectionKey key;
+    private volatile int peerId;
+    private NetworkManager manager;
+    private boolean closed;
+    private volatile boolean introduced;
+    private volatile InetSocketAddress udpAddress;
+    // Newest PLAYER sequence number seen per player on this connection; more than
+    // one when it is a server relaying the others (selector thread only). Kept in
+    // plain arrays, as boxing a sequence number would allocate on every update
+    private int[] sequencePlayers = new int[4];
+    private int[] lastPlayerSequence = new int[4];
+    private int sequenceCount;
+    // Where this peer's own player was last seen, for area of interest filtering
+    private volatile boolean hasView;
+    private volatile int viewX, viewY;
+    // Object snapshots: what we sent and what the peer acknowledged (sending side),
+    // and the ones received from it to apply deltas to (selector thread only)
+    private volatile int lastSentSnapshot = Snapshot.KEYFRAME;
+    private volatile int ackedSnapshot = Snapshot.KEYFRAME;
+    final SnapshotHistory receivedSnapshots = new SnapshotHistory();
+    final GameState objectState = new GameState();
+    // Every frame read from this peer is decoded into these (selector thread only)
+    private final Message received = new Message();
+    private final GameState receivedPlayer = new GameState();
+    private final Snapshot receivedSnapshot = new Snapshot();
+    // Filled by the selector thread, frames are decoded in place
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    // Encoded frames not yet accepted by the socket (write mode); guarded by this
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+    // The queued GAME_STATE frame none of which is written yet, if any; guarded by this
+    private int stateFrameStart = -1, stateFrameEnd;
+    private boolean stalled;
+    private volatile int peakQueuedBytes;
+    // Traffic with this peer, and the last PING round trip (-1 before the first PONG)
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    private volatile int rttMicros = -1;
+    
+    public PeerConnection(SocketChannel channel, int peerId, NetworkManager manager) throws IOException {
+        this.channel = channel;
+        this.peerId = peerId;
+        this.manager = manager;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+    
+    // Selector thread only
+    synchronized void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        updateInterest();
+    }
+    
+    // False if the frame was dropped (or the connection is closed)
+    public synchronized boolean sendMessage(Message msg) {
+        if (closed || stalled) {
+            return false;
+        }
+        MessageType type = msg.getType();
+        if (type == MessageType.GAME_STATE && stateFrameStart >= 0) {
+            // Superseded before it left: the newer one goes to the back of the queue instead
+            removeFrame(MessageType.GAME_STATE, stateFrameStart, stateFrameEnd);
+            stateFrameStart = -1;
+            manager.telemetry.framesCoalesced.increment();
+        }
+        int start = writeBuffer.position();
+        boolean state = type == MessageType.GAME_STATE || type == MessageType.PLAYER;
+        if (state && start >= MAX_QUEUED_BYTES) {
+            manager.telemetry.framesDropped.increment();
+            return false;
+        }
+        if (start >= HARD_LIMIT_BYTES) {
+            stalled = true;
+            manager.dropStalledPeer(this);
+            return false;
+        }
+        while (true) {
+            try {
+                WireCodec.encode(msg, writeBuffer);
+                manager.telemetry.sent(type, writeBuffer.position() - start, this);
+                break;
+            } catch (BufferOverflowException e) {
+                writeBuffer.position(start);
+                ByteBuffer bigger = ByteBuffer.allocate(writeBuffer.capacity() * 2);
+                writeBuffer.flip();
+                bigger.put(writeBuffer);
+                writeBuffer = bigger;
+            }
+        }
+        if (type == MessageType.GAME_STATE) {
+            stateFrameStart = start;
+            stateFrameEnd = writeBuffer.position();
+        }
+        if (writeBuffer.position() > peakQueuedBytes) {
+            peakQueuedBytes = writeBuffer.position();
+        }
+        updateInterest();
+        return true;
+    }
+    
+    // Cuts the frame at [start, end) out of the write buffer, uncounting it
+    private void removeFrame(MessageType type, int start, int end) {
+        byte[] bytes = writeBuffer.array();
+        System.arraycopy(bytes, end, bytes, start, writeBuffer.position() - end);
+        writeBuffer.position(writeBuffer.position() - (end - start));
+        manager.telemetry.unsent(type, end - start, this);
+    }
+    
+    // Selector thread: everything queued so far goes out in one write
+    synchronized void onWritable() throws IOException {
+        writeBuffer.flip();
+        int written = channel.write(writeBuffer);
+        writeBuffer.compact();
+        if (stateFrameStart >= 0) {
+            stateFrameStart -= written;
+            stateFrameEnd -= written;
+            if (stateFrameStart < 0) {
+                // Partly on the wire already, it has to go out whole
+                stateFrameStart = -1;
+            }
+        }
+        updateInterest();
+    }
+    
+    synchronized int getQueuedBytes() {
+        return writeBuffer.position();
+    }
+    
+    int getPeakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+    
+    int getRttMicros() {
+        return rttMicros;
+    }
+    
+    void setRttMicros(int micros) {
+        rttMicros = micros;
+    }
+    
+    // Ask for OP_WRITE only while something is left to send
+    private void updateInterest() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        boolean pending = writeBuffer.position() > 0;
+        int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+            if (pending) {
+                key.selector().wakeup();
+            }
+        }
+    }
+    
+    // Selector thread only
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new EOFException();
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int frameStart = readBuffer.position();
+            int length = readBuffer.getInt(frameStart);
+            if (length < WireCodec.HEADER_BYTES || length > WireCodec.MAX_FRAME_BYTES) {
+                // There is no finding the next frame after this one
+                manager.telemetry.malformed(readBuffer.remaining());
+                throw new IOException("Bad frame length " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                break;
+            }
+            int frameEnd = frameStart + 4 + length;
+            int limit = readBuffer.limit();
+            readBuffer.position(frameStart + 4).limit(frameEnd);
+            boolean valid = WireCodec.decode(readBuffer, received, receivedPlayer, receivedSnapshot);
+            readBuffer.limit(limit).position(frameEnd);
+            if (valid) {
+                manager.telemetry.received(received.getType(), 4 + length, this);
+                manager.handleMessage(received, this);
+            } else {
+                // The length still says where the next frame starts: skip just this one
+                manager.telemetry.malformed(4 + length);
+            }
+        }
+        readBuffer.compact();
+        
+        // A frame bigger than the buffer: make room for it
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+    }
+    
+    // True if seq is newer than every PLAYER update accepted so far for that player
+    // (wrap-around safe)
+    boolean acceptPlayerSequence(int playerId, int seq) {
+        for (int i = 0; i < sequenceCount; i++) {
+            if (sequencePlayers[i] == playerId) {
+                if (seq - lastPlayerSequence[i] <= 0) {
+                    return false;
+                }
+                lastPlayerSequence[i] = seq;
+                return true;
+            }
+        }
+        if (sequenceCount == sequencePlayers.length) {
+            sequencePlayers = Arrays.copyOf(sequencePlayers, sequenceCount * 2);
+            lastPlayerSequence = Arrays.copyOf(lastPlayerSequence, sequenceCount * 2);
+        }
+        sequencePlayers[sequenceCount] = playerId;
+        lastPlayerSequence[sequenceCount++] = seq;
+        return true;
+    }
+    
+    int getLastSentSnapshot() {
+        return lastSentSnapshot;
+    }
+    
+    void setLastSentSnapshot(int id) {
+        lastSentSnapshot = id;
+    }
+    
+    int getAckedSnapshot() {
+        return ackedSnapshot;
+    }
+    
+    // A KEYFRAME ack means the peer lost track: resend everything from scratch
+    void acknowledgeSnapshot(int id) {
+        ackedSnapshot = id;
+        if (id == Snapshot.KEYFRAME) {
+            lastSentSnapshot = Snapshot.KEYFRAME;
+        }
+    }
+    
+    void setView(int worldX, int worldY) {
+        viewX = worldX;
+        viewY = worldY;
+        hasView = true;
+    }
+    
+    boolean isInterested(int worldX, int worldY, int halfWidth, int halfHeight) {
+        return !hasView || (Math.abs(worldX - viewX) <= halfWidth && Math.abs(worldY - viewY) <= halfHeight);
+    }
+    
+    InetAddress getRemoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+    
+    void setUdpAddress(InetSocketAddress address) {
+        this.udpAddress = address;
+    }
+    
+    InetSocketAddress getUdpAddress() {
+        return udpAddress;
+    }
+    
+    void setIntroduced() {
+        introduced = true;
+    }
+    
+    boolean isIntroduced() {
+        return introduced;
+    }
+    
+    public void setPeerId(int peerId) {
+        this.peerId = peerId;
+    }
+    
+    public int getPeerId() {
+        return peerId;
+    }
+    
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+}
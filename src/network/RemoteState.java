@@ -1,12 +1,16 @@
 package network;
 
+// One received position of a remote player, stamped with the sender's clock in
+// milliseconds. RemotePlayer keeps a ring of these and draws a little in the past,
+// between the two states around its render time.
 public class RemoteState {
     public float x, y;
-    public long lamport;
+    public long time;
+    public int direction, spriteNum;
 
-    public RemoteState(float x, float y, long lamport) {
+    public RemoteState(float x, float y, long time) {
         this.x = x;
         this.y = y;
-        this.lamport = lamport;
+        this.time = time;
     }
 }
@@ -0,0 +1,26 @@
+package network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Ricart-Agrawala state for one lock key: our request for it, the replies that request
+// still waits for, the peers whose REPLY we hold back, and local requests queued behind
+// ours. Guarded by NetworkManager.mutex
+class RequestQueue {
+    final int key;
+    boolean requesting, inCriticalSection;
+    int timestamp;
+    final Set<PeerConnection> awaitingReplies = new HashSet<>();
+    final List<PeerConnection> deferredReplies = new ArrayList<>();
+    LockEntry pendingEntry;
+    final Deque<LockEntry> queuedEntries = new ArrayDeque<>();
+    long enteredAt;
+    
+    RequestQueue(int key) {
+        this.key = key;
+    }
+}
@@ -0,0 +1,40 @@
+package network;
+
+import java.util.Arrays;
+
+// One numbered copy of a peer's object bits. Both ends keep the recent ones in a
+// SnapshotHistory, so a GAME_STATE can be sent as the words that changed since a
+// snapshot the receiver has acknowledged (its baseline) instead of all of them.
+// A decoded GAME_STATE arrives as a Snapshot too: for a delta, bits only holds the
+// changed words, XORed against baselineId, and changed lists their indices.
+class Snapshot {
+    static final int KEYFRAME = -1;
+
+    int id = -1;
+    int baselineId = KEYFRAME;
+    int objectCount;
+    long[] bits = new long[1];
+    int[] changed = new int[1];
+    int changedCount;
+
+    int words() {
+        return (objectCount + 63) >>> 6;
+    }
+
+    void setObjectCount(int count) {
+        objectCount = count;
+        int words = words();
+        if (bits.length < words) {
+            bits = Arrays.copyOf(bits, words);
+        }
+        if (changed.length < words) {
+            changed = Arrays.copyOf(changed, words);
+        }
+        Arrays.fill(bits, 0, words, 0L);
+        changedCount = 0;
+    }
+
+    boolean matches(int count, long[] other) {
+        return objectCount == count && Arrays.equals(bits, 0, words(), other, 0, words());
+    }
+}
@@ -0,0 +1,68 @@
+package network;
+
+import java.util.Arrays;
+
+// Ring of the last SIZE snapshots, looked up by id
+class SnapshotHistory {
+    static final int SIZE = 32;
+
+    private final Snapshot[] ring = new Snapshot[SIZE];
+    private Snapshot latest;
+
+    SnapshotHistory() {
+        for (int i = 0; i < SIZE; i++) {
+            ring[i] = new Snapshot();
+        }
+    }
+
+    Snapshot get(int id) {
+        if (id < 0) {
+            return null;
+        }
+        Snapshot snapshot = ring[id & (SIZE - 1)];
+        return snapshot.id == id ? snapshot : null;
+    }
+
+    Snapshot latest() {
+        return latest;
+    }
+
+    // Records a full copy of bits as snapshot id, overwriting the oldest one
+    Snapshot put(int id, int count, long[] bits) {
+        Snapshot slot = ring[id & (SIZE - 1)];
+        slot.id = id;
+        slot.setObjectCount(count);
+        System.arraycopy(bits, 0, slot.bits, 0, slot.words());
+        latest = slot;
+        return slot;
+    }
+
+    // Rebuilds the full snapshot from a decoded one and its baseline (null for a keyframe)
+    Snapshot apply(Snapshot decoded, Snapshot baseline) {
+        Snapshot slot = ring[decoded.id & (SIZE - 1)];
+        int words = decoded.words();
+        if (baseline == null) {
+            put(decoded.id, decoded.objectCount, decoded.bits);
+            return slot;
+        }
+        int baselineWords = Math.min(words, baseline.words());
+        if (slot == baseline) {
+            // Only when the ids are SIZE apart: patch it in place
+            if (slot.bits.length < words) {
+                slot.bits = Arrays.copyOf(slot.bits, words);
+            }
+            Arrays.fill(slot.bits, baselineWords, words, 0L);
+            slot.objectCount = decoded.objectCount;
+        } else {
+            slot.setObjectCount(decoded.objectCount);
+            System.arraycopy(baseline.bits, 0, slot.bits, 0, baselineWords);
+        }
+        slot.id = decoded.id;
+        for (int i = 0; i < decoded.changedCount; i++) {
+            int word = decoded.changed[i];
+            slot.bits[word] ^= decoded.bits[word];
+        }
+        latest = slot;
+        return slot;
+    }
+}
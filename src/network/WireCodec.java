@@ -0,0 +1,220 @@
+package network;
+
+import java.nio.ByteBuffer;
+
+// Binary framing for every Message, replacing Java serialization on the sockets.
+//   int  length of the rest of the frame
+//   byte type (MessageType ordinal)
+//   int  sender id
+//   int  Lamport timestamp
+//   ...  payload:
+//        CONNECT     int UDP port, byte 1 if the sender is an authoritative server
+//        PLAYER      int sequence, int player id, int sent at (sender ms), int worldX, int worldY,
+//                    byte direction, byte spriteNum
+//        GAME_STATE  int snapshot id, int baseline id (-1 for a keyframe), int object count, then
+//                    keyframe: (count + 63) / 64 longs of "object still present" bits
+//                    delta:    int n, then n times (int word index, long word XOR baseline word)
+//        ACK         int snapshot id (-1 asks for a keyframe)
+//        REQUEST, REPLY, RELEASE  int lock key
+//        PICKUP      int object index (request from a client; the server answers with it
+//                    if granted, ~index if not)
+//        PING, PONG  int sender's clock in microseconds, sent back as is in the PONG
+//        INPUT       int tick, byte input bits (lockstep)
+//        STATE_HASH  int tick, int hash of the simulation after it (lockstep)
+class WireCodec {
+    static final int HEADER_BYTES = 9;
+    static final int MAX_FRAME_BYTES = 1 << 20;
+    private static final MessageType[] TYPES = MessageType.values();
+    // Least payload after the header, by type; GAME_STATE checks the rest as it goes
+    private static final int[] PAYLOAD_BYTES = new int[TYPES.length];
+    
+    static {
+        for (MessageType type : TYPES) {
+            switch (type) {
+                case CONNECT:
+                case INPUT:
+                    PAYLOAD_BYTES[type.ordinal()] = 5;
+                    break;
+                case STATE_HASH:
+                    PAYLOAD_BYTES[type.ordinal()] = 8;
+                    break;
+                case PLAYER:
+                    PAYLOAD_BYTES[type.ordinal()] = 4 + 18;
+                    break;
+                case GAME_STATE:
+                    PAYLOAD_BYTES[type.ordinal()] = 12;
+                    break;
+                default:
+                    PAYLOAD_BYTES[type.ordinal()] = 4;
+                    break;
+            }
+        }
+    }
+    
+    // Appends one frame to out; throws BufferOverflowException if out is too small
+    static void encode(Message msg, ByteBuffer out) {
+        int start = out.position();
+        out.putInt(0);
+        out.put((byte) msg.getType().ordinal());
+        out.putInt(msg.getSenderId());
+        out.putInt(msg.getTimestamp());
+        switch (msg.getType()) {
+            case CONNECT:
+                out.putInt((int) msg.getValue());
+                out.put((byte) (msg.getValue() >>> 32));
+                break;
+            case ACK:
+            case REQUEST:
+            case REPLY:
+            case RELEASE:
+            case PICKUP:
+            case PING:
+            case PONG:
+                out.putInt((int) msg.getValue());
+                break;
+            case PLAYER:
+                out.putInt((int) msg.getValue());
+                encodePlayer(msg.getState(), out);
+                break;
+            case GAME_STATE:
+                encodeSnapshot(msg.getSnapshot(), msg.getBaseline(), out);
+                break;
+            case INPUT:
+                out.putInt((int) (msg.getValue() >> 8));
+                out.put((byte) msg.getValue());
+                break;
+            case STATE_HASH:
+                out.putLong(msg.getValue());
+                break;
+            default:
+                break;
+        }
+        out.putInt(start, out.position() - start - 4);
+    }
+    
+    static void encodePlayer(GameState state, ByteBuffer out) {
+        out.putInt(state.playerId);
+        out.putInt(state.sentAt);
+        out.putInt(state.worldX);
+        out.putInt(state.worldY);
+        out.put((byte) state.direction);
+        out.put((byte) state.spriteNum);
+    }
+    
+    // Only the words that differ from baseline, or everything when there is none
+    static void encodeSnapshot(Snapshot snapshot, Snapshot baseline, ByteBuffer out) {
+        out.putInt(snapshot.id);
+        out.putInt(baseline == null ? Snapshot.KEYFRAME : baseline.id);
+        out.putInt(snapshot.objectCount);
+        int words = snapshot.words();
+        if (baseline == null) {
+            for (int i = 0; i < words; i++) {
+                out.putLong(snapshot.bits[i]);
+            }
+            return;
+        }
+        int countAt = out.position();
+        out.putInt(0);
+        int changed = 0;
+        int baselineWords = baseline.words();
+        for (int i = 0; i < words; i++) {
+            long diff = snapshot.bits[i] ^ (i < baselineWords ? baseline.bits[i] : 0L);
+            if (diff != 0) {
+                out.putInt(i);
+                out.putLong(diff);
+                changed++;
+            }
+        }
+        out.putInt(countAt, changed);
+    }
+    
+    // frame holds exactly one frame, without its length prefix. Decodes it into into,
+    // with player or snapshot holding the payload, and returns false (having allocated
+    // nothing, not even an exception) if it is malformed
+    static boolean decode(ByteBuffer frame, Message into, GameState player, Snapshot snapshot) {
+        if (frame.remaining() < HEADER_BYTES) {
+            return false;
+        }
+        int type = frame.get() & 0xff;
+        if (type >= TYPES.length || frame.remaining() < 8 + PAYLOAD_BYTES[type]) {
+            return false;
+        }
+        int senderId = frame.getInt();
+        int timestamp = frame.getInt();
+        switch (TYPES[type]) {
+            case CONNECT:
+                into.set(MessageType.CONNECT, senderId, timestamp, null,
+                        (frame.getInt() & 0xffffffffL) | ((long) (frame.get() & 1) << 32));
+                return true;
+            case PLAYER:
+                into.set(MessageType.PLAYER, senderId, timestamp, player, frame.getInt());
+                decodePlayer(frame, player);
+                return true;
+            case GAME_STATE:
+                into.set(MessageType.GAME_STATE, senderId, timestamp, null, 0).setSnapshot(snapshot);
+                return decodeSnapshot(frame, snapshot);
+            case INPUT:
+                int tick = frame.getInt();
+                into.set(MessageType.INPUT, senderId, timestamp, null, (long) tick << 8 | (frame.get() & 0xff));
+                return tick >= 0;
+            case STATE_HASH:
+                into.set(MessageType.STATE_HASH, senderId, timestamp, null, frame.getLong());
+                return true;
+            default:
+                into.set(TYPES[type], senderId, timestamp, null, frame.getInt());
+                return true;
+        }
+    }
+    
+    static GameState decodePlayer(ByteBuffer in, GameState into) {
+        into.hasPlayer = true;
+        into.hasObjects = false;
+        into.playerId = in.getInt();
+        into.sentAt = in.getInt();
+        into.worldX = in.getInt();
+        into.worldY = in.getInt();
+        into.direction = in.get();
+        into.spriteNum = in.get();
+        return into;
+    }
+    
+    static boolean decodeSnapshot(ByteBuffer in, Snapshot into) {
+        into.id = in.getInt();
+        into.baselineId = in.getInt();
+        int count = in.getInt();
+        if (into.id < 0 || count < 0 || count > MAX_FRAME_BYTES * 8) {
+            return false;
+        }
+        int words = (count + 63) >>> 6;
+        if (into.baselineId == Snapshot.KEYFRAME) {
+            if (words * 8L > in.remaining()) {
+                return false;
+            }
+            into.setObjectCount(count);
+            for (int i = 0; i < words; i++) {
+                into.bits[i] = in.getLong();
+                into.changed[i] = i;
+            }
+            into.changedCount = words;
+            return true;
+        }
+        if (in.remaining() < 4) {
+            return false;
+        }
+        int changed = in.getInt();
+        if (changed < 0 || changed > words || changed * 12L > in.remaining()) {
+            return false;
+        }
+        into.setObjectCount(count);
+        for (int i = 0; i < changed; i++) {
+            int word = in.getInt();
+            if (word < 0 || word >= words) {
+                return false;
+            }
+            into.bits[word] = in.getLong();
+            into.changed[i] = word;
+        }
+        into.changedCount = changed;
+        return true;
+    }
+}
@@ -2,13 +2,14 @@ package object;
 
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
+import main.UtilityTool;
+import main.gamePanel;
 
 public class OBJ_Boots extends SuperObject {
-	public OBJ_Boots() {
+	public OBJ_Boots(gamePanel gp) {
 		name = "Boots";
 		try {
-			image = ImageIO.read(getClass().getResourceAsStream("/objects/boots.png"));
+			image = UtilityTool.loadImage("/objects/boots.png", gp.tileSize, gp.tileSize);
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -2,13 +2,14 @@ package object;
 
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
+import main.UtilityTool;
+import main.gamePanel;
 
 public class OBJ_Chest extends SuperObject{
-	public OBJ_Chest() {
+	public OBJ_Chest(gamePanel gp) {
 		name = "Chest";
 		try {
-			image = ImageIO.read(getClass().getResourceAsStream("/objects/chest.png"));
+			image = UtilityTool.loadImage("/objects/chest.png", gp.tileSize, gp.tileSize);
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -2,13 +2,14 @@ package object;
 
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
+import main.UtilityTool;
+import main.gamePanel;
 
 public class OBJ_Door extends SuperObject {
-	public OBJ_Door() {
+	public OBJ_Door(gamePanel gp) {
 		name = "Door";
 		try {
-			image = ImageIO.read(getClass().getResourceAsStream("/objects/door.png"));
+			image = UtilityTool.loadImage("/objects/door.png", gp.tileSize, gp.tileSize);
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
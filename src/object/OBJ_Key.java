@@ -2,16 +2,17 @@ package object;
 
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
+import main.UtilityTool;
+import main.gamePanel;
 
 public class OBJ_Key extends SuperObject{
 
 	
 	
-	public OBJ_Key() {
+	public OBJ_Key(gamePanel gp) {
 		name = "Key";
 		try {
-			image = ImageIO.read(getClass().getResourceAsStream("/objects/key.png"));
+			image = UtilityTool.loadImage("/objects/key.png", gp.tileSize, gp.tileSize);
 		}catch(IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,82 @@
+package object;
+
+import java.util.Arrays;
+
+// Uniform grid over the world holding the indices of gp.obj by position, so collision
+// and culling only look at the cells around a rectangle instead of every object.
+// An object is filed under the cell of its top left corner; objects are assumed to be
+// no bigger than a cell, so queries reach one cell further up and left to catch them.
+// Every method takes the grid's lock: add and remove come from the game thread and,
+// for objects taken over the network, the network threads, while the game thread
+// (collisions, culling) and, on the repaint path, the Swing thread (culling) query.
+public class ObjectGrid {
+	private final int cellSize;
+	private final int cols, rows;
+	private final int[][] cells;
+	private final int[] cellCounts;
+
+	public ObjectGrid(int worldCols, int worldRows, int tileSize, int cellTiles) {
+		this.cellSize = tileSize * cellTiles;
+		this.cols = (worldCols + cellTiles - 1) / cellTiles;
+		this.rows = (worldRows + cellTiles - 1) / cellTiles;
+		this.cells = new int[cols * rows][];
+		this.cellCounts = new int[cols * rows];
+	}
+
+	public synchronized void add(int index, SuperObject object) {
+		int cell = cellOf(object.worldX, object.worldY);
+		int[] entries = cells[cell];
+		if(entries == null) {
+			entries = cells[cell] = new int[4];
+		}else if(cellCounts[cell] == entries.length) {
+			entries = cells[cell] = Arrays.copyOf(entries, entries.length * 2);
+		}
+		entries[cellCounts[cell]++] = index;
+	}
+
+	public synchronized void remove(int index, SuperObject object) {
+		int cell = cellOf(object.worldX, object.worldY);
+		int[] entries = cells[cell];
+		for(int i = 0; i < cellCounts[cell]; i++) {
+			if(entries[i] == index) {
+				entries[i] = entries[--cellCounts[cell]];
+				return;
+			}
+		}
+	}
+
+	// Writes the indices of the objects that may overlap the world rectangle into out
+	// and returns how many there are. If that is more than out.length the extra ones
+	// are not written, and the caller should retry with a bigger array.
+	public synchronized int query(int left, int top, int right, int bottom, int[] out) {
+		int firstCol = clamp(Math.floorDiv(left - cellSize + 1, cellSize), cols);
+		int lastCol = clamp(Math.floorDiv(right, cellSize), cols);
+		int firstRow = clamp(Math.floorDiv(top - cellSize + 1, cellSize), rows);
+		int lastRow = clamp(Math.floorDiv(bottom, cellSize), rows);
+
+		int count = 0;
+		for(int row = firstRow; row <= lastRow; row++) {
+			for(int col = firstCol; col <= lastCol; col++) {
+				int cell = row * cols + col;
+				int[] entries = cells[cell];
+				for(int i = 0; i < cellCounts[cell]; i++) {
+					if(count < out.length) {
+						out[count] = entries[i];
+					}
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private int cellOf(int worldX, int worldY) {
+		int col = clamp(Math.floorDiv(worldX, cellSize), cols);
+		int row = clamp(Math.floorDiv(worldY, cellSize), rows);
+		return row * cols + col;
+	}
+
+	private static int clamp(int value, int size) {
+		return value < 0 ? 0 : value >= size ? size - 1 : value;
+	}
+}
@@ -13,11 +13,11 @@ public class SuperObject {
 	public int solidAreaDefaultX =0;
 	public int solidAreaDefaultY =0;
 	public void draw(Graphics g2,gamePanel gp) {
-		int screenX = worldX -gp.player.worldX +gp.player.screenX;
-		int screenY = worldY -gp.player.worldY +gp.player.screenY;
-	if(worldX +gp.tileSize>gp.player.worldX -gp.player.screenX && worldX -gp.tileSize <gp.player.worldX +gp.player.screenX
-			&& worldY + gp.tileSize >gp.player.worldY -gp.player.screenY && worldY -gp.tileSize<gp.player.worldY +gp.player.screenY) {
-		g2.drawImage(image, screenX,  screenY,   gp.tileSize, gp.tileSize, null);
+		int screenX = worldX -gp.player.renderX +gp.player.screenX;
+		int screenY = worldY -gp.player.renderY +gp.player.screenY;
+	if(worldX +gp.tileSize>gp.player.renderX -gp.player.screenX && worldX -gp.tileSize <gp.player.renderX +gp.player.screenX
+			&& worldY + gp.tileSize >gp.player.renderY -gp.player.screenY && worldY -gp.tileSize<gp.player.renderY +gp.player.screenY) {
+		g2.drawImage(image, screenX,  screenY, null);
 
 	}
 	}
@@ -0,0 +1,130 @@
+package tile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Compact binary map, memory-mapped so the tile data stays off-heap and only the
+// regions being read are paged in. Layout (big-endian):
+//   int    MAGIC ("MAP1")
+//   int    cols, rows
+//   byte   bytes per cell (1 or 2)
+//   short  palette size, then that many shorts: the tile number of each palette entry
+//   cells  cols * rows palette indexes, row by row
+// Written by MapConverter from the text maps.
+public class BinaryMapSource implements WorldSource {
+	public static final int MAGIC = 0x4D415031;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer data;
+	private final int cols, rows;
+	private final int cellBytes;
+	private final short[] palette;
+	private final int dataOffset;
+
+	public BinaryMapSource(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too big to map");
+			}
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(data.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a binary map");
+			}
+			cols = data.getInt(4);
+			rows = data.getInt(8);
+			cellBytes = data.get(12);
+			int paletteSize = data.getShort(13) & 0xffff;
+			palette = new short[paletteSize];
+			for(int i = 0; i < paletteSize; i++) {
+				palette[i] = data.getShort(15 + i * 2);
+			}
+			dataOffset = 15 + paletteSize * 2;
+			if(cellBytes != 1 && cellBytes != 2) {
+				throw new IOException(file + ": bad cell size " + cellBytes);
+			}
+			if(dataOffset + (long) cols * rows * cellBytes > data.capacity()) {
+				throw new IOException(file + " is truncated");
+			}
+		}catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public void readRegion(int firstCol, int firstRow, int cols, int rows, short[] out, int stride) {
+		for(int row = 0; row < rows; row++) {
+			int position = dataOffset + ((firstRow + row) * this.cols + firstCol) * cellBytes;
+			int outIndex = row * stride;
+			for(int col = 0; col < cols; col++) {
+				int entry = cellBytes == 1 ? data.get(position + col) & 0xff : data.getShort(position + col * 2) & 0xffff;
+				out[outIndex + col] = entry < palette.length ? palette[entry] : -1;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// Header followed by the cells of source; used by MapConverter
+	static ByteBuffer encode(WorldSource source) throws IOException {
+		int cols = source.getCols();
+		int rows = source.getRows();
+		short[] row = new short[cols];
+
+		// Palette: every tile number used, in increasing order
+		boolean[] used = new boolean[1 << 16];
+		for(int r = 0; r < rows; r++) {
+			source.readRegion(0, r, cols, 1, row, cols);
+			for(short num : row) {
+				used[num & 0xffff] = true;
+			}
+		}
+		short[] palette = new short[1 << 16];
+		int[] entryOf = new int[1 << 16];
+		int paletteSize = 0;
+		for(int num = 0; num < used.length; num++) {
+			if(used[num]) {
+				entryOf[num] = paletteSize;
+				palette[paletteSize++] = (short) num;
+			}
+		}
+		int cellBytes = paletteSize <= 256 ? 1 : 2;
+
+		ByteBuffer out = ByteBuffer.allocate(15 + paletteSize * 2 + cols * rows * cellBytes);
+		out.putInt(MAGIC).putInt(cols).putInt(rows).put((byte) cellBytes).putShort((short) paletteSize);
+		for(int i = 0; i < paletteSize; i++) {
+			out.putShort(palette[i]);
+		}
+		for(int r = 0; r < rows; r++) {
+			source.readRegion(0, r, cols, 1, row, cols);
+			for(short num : row) {
+				int entry = entryOf[num & 0xffff];
+				if(cellBytes == 1) {
+					out.put((byte) entry);
+				}else {
+					out.putShort((short) entry);
+				}
+			}
+		}
+		out.flip();
+		return out;
+	}
+}
@@ -0,0 +1,57 @@
+package tile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Offline tool: converts text maps into the binary format read by BinaryMapSource.
+//   java tile.MapConverter [map.txt | directory ...]     (default: res/maps)
+// Each foo.txt is written next to itself as foo.map.
+public class MapConverter {
+
+	public static void main(String[] args) throws IOException {
+		if(args.length == 0) {
+			args = new String[] {"res/maps"};
+		}
+		for(String arg : args) {
+			Path path = Paths.get(arg);
+			if(Files.isDirectory(path)) {
+				try(DirectoryStream<Path> maps = Files.newDirectoryStream(path, "*.txt")) {
+					for(Path map : maps) {
+						convert(map);
+					}
+				}
+			}else {
+				convert(path);
+			}
+		}
+	}
+
+	public static Path convert(Path textMap) throws IOException {
+		String name = textMap.getFileName().toString();
+		Path binaryMap = textMap.resolveSibling(name.substring(0, name.lastIndexOf('.')) + ".map");
+
+		long start = System.nanoTime();
+		TextMapSource source;
+		try(InputStream is = Files.newInputStream(textMap)) {
+			source = new TextMapSource(is);
+		}
+		ByteBuffer encoded = BinaryMapSource.encode(source);
+		try(FileChannel out = FileChannel.open(binaryMap, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while(encoded.hasRemaining()) {
+				out.write(encoded);
+			}
+		}
+		System.out.printf("%s -> %s: %dx%d, %d -> %d bytes, %.1f ms%n", textMap, binaryMap,
+				source.getCols(), source.getRows(), Files.size(textMap), Files.size(binaryMap),
+				(System.nanoTime() - start) / 1e6);
+		return binaryMap;
+	}
+}
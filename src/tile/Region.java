@@ -0,0 +1,30 @@
+package tile;
+
+// A REGION_SIZE x REGION_SIZE block of the world: its tile numbers and one solidity
+// bit per tile (one long per row, bit = column inside the region)
+class Region {
+	static final int REGION_SIZE = 64;
+	// Approximate footprint, used against the memory budget
+	static final long BYTES = REGION_SIZE * REGION_SIZE * 2L + REGION_SIZE * 8L + 64;
+
+	final int index;
+	final short[] tiles = new short[REGION_SIZE * REGION_SIZE];
+	final long[] solid = new long[REGION_SIZE];
+	// Tick of the last lookup; written without synchronization, so only approximately LRU
+	long lastUsed;
+	// Edited with setTile: the edit exists nowhere else, so never evict it
+	boolean dirty;
+
+	Region(int index) {
+		this.index = index;
+	}
+
+	void setTile(int col, int row, int num, boolean collision) {
+		tiles[row * REGION_SIZE + col] = (short) num;
+		if(collision) {
+			solid[row] |= 1L << col;
+		}else {
+			solid[row] &= ~(1L << col);
+		}
+	}
+}
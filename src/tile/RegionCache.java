@@ -0,0 +1,157 @@
+package tile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keeps the regions around the player in memory. Regions are read from the WorldSource
+// on a background thread as the player comes near them; once the memory budget is used
+// up, the least recently used region outside the keep radius is dropped.
+// Lookups are a single array read and never block on loading.
+class RegionCache {
+	// Regions loaded around the player, in regions; covers the screen plus a margin
+	static final int KEEP_RADIUS = 2;
+
+	private final WorldSource source;
+	private final tile[] tiles;
+	final int regionCols, regionRows;
+	private final AtomicReferenceArray<Region> regions;
+	private final int maxRegions;
+
+	private final List<Region> loaded = new ArrayList<>();
+	private final Set<Integer> pending = ConcurrentHashMap.newKeySet();
+	private final ExecutorService loader;
+	private volatile int centerCol, centerRow;
+	long clock;
+
+	RegionCache(WorldSource source, tile[] tiles, long budgetBytes) {
+		this.source = source;
+		this.tiles = tiles;
+		this.regionCols = (source.getCols() + Region.REGION_SIZE - 1) / Region.REGION_SIZE;
+		this.regionRows = (source.getRows() + Region.REGION_SIZE - 1) / Region.REGION_SIZE;
+		this.regions = new AtomicReferenceArray<>(regionCols * regionRows);
+		int keepArea = (2 * KEEP_RADIUS + 1) * (2 * KEEP_RADIUS + 1);
+		this.maxRegions = (int) Math.max(keepArea * 2, budgetBytes / Region.BYTES);
+		// The thread itself is only started by the first request
+		this.loader = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "world-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	// Small worlds are simply loaded whole, on the calling thread
+	boolean fitsInBudget() {
+		return regionCols * regionRows <= maxRegions;
+	}
+
+	void loadAll() {
+		for(int i = 0; i < regionCols * regionRows; i++) {
+			load(i);
+		}
+	}
+
+	// Called every tick with the player's tile; queues the missing regions around it
+	void requestAround(int col, int row) {
+		clock++;
+		int centerRegionCol = Math.floorDiv(col, Region.REGION_SIZE);
+		int centerRegionRow = Math.floorDiv(row, Region.REGION_SIZE);
+		centerCol = centerRegionCol;
+		centerRow = centerRegionRow;
+		for(int regionRow = centerRegionRow - KEEP_RADIUS; regionRow <= centerRegionRow + KEEP_RADIUS; regionRow++) {
+			for(int regionCol = centerRegionCol - KEEP_RADIUS; regionCol <= centerRegionCol + KEEP_RADIUS; regionCol++) {
+				if(regionCol < 0 || regionRow < 0 || regionCol >= regionCols || regionRow >= regionRows) {
+					continue;
+				}
+				int index = regionRow * regionCols + regionCol;
+				if(regions.get(index) == null && pending.add(index)) {
+					loader.execute(() -> {
+						try {
+							load(index);
+						}finally {
+							pending.remove(index);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	Region get(int col, int row) {
+		Region region = regions.get((row / Region.REGION_SIZE) * regionCols + col / Region.REGION_SIZE);
+		if(region != null) {
+			region.lastUsed = clock;
+		}
+		return region;
+	}
+
+	private synchronized void load(int index) {
+		if(regions.get(index) != null) {
+			return;
+		}
+		int firstCol = (index % regionCols) * Region.REGION_SIZE;
+		int firstRow = (index / regionCols) * Region.REGION_SIZE;
+		int cols = Math.min(Region.REGION_SIZE, source.getCols() - firstCol);
+		int rows = Math.min(Region.REGION_SIZE, source.getRows() - firstRow);
+
+		Region region = new Region(index);
+		try {
+			source.readRegion(firstCol, firstRow, cols, rows, region.tiles, Region.REGION_SIZE);
+		}catch(IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for(int row = 0; row < Region.REGION_SIZE; row++) {
+			for(int col = 0; col < Region.REGION_SIZE; col++) {
+				// Padding past the map edge and unknown tile numbers are solid
+				int num = region.tiles[row * Region.REGION_SIZE + col];
+				boolean solid = col >= cols || row >= rows || num < 0 || num >= tiles.length
+						|| tiles[num] == null || tiles[num].collision;
+				if(solid) {
+					region.solid[row] |= 1L << col;
+				}
+			}
+		}
+		region.lastUsed = clock;
+		loaded.add(region);
+		regions.set(index, region);
+		evict();
+	}
+
+	private void evict() {
+		while(loaded.size() > maxRegions) {
+			Region oldest = null;
+			for(Region region : loaded) {
+				int regionCol = region.index % regionCols;
+				int regionRow = region.index / regionCols;
+				boolean near = Math.abs(regionCol - centerCol) <= KEEP_RADIUS && Math.abs(regionRow - centerRow) <= KEEP_RADIUS;
+				if(!near && !region.dirty && (oldest == null || region.lastUsed < oldest.lastUsed)) {
+					oldest = region;
+				}
+			}
+			if(oldest == null) {
+				return;
+			}
+			loaded.remove(oldest);
+			regions.set(oldest.index, null);
+		}
+	}
+
+	synchronized int loadedCount() {
+		return loaded.size();
+	}
+
+	void close() {
+		loader.shutdownNow();
+		try {
+			source.close();
+		}catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package tile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// The original text maps: one line per row, tile numbers separated by spaces.
+// Text cannot be seeked into, so the whole map is parsed once and kept as shorts.
+public class TextMapSource implements WorldSource {
+	private final int cols, rows;
+	private final short[] tiles;
+
+	public TextMapSource(InputStream is) throws IOException {
+		List<String[]> lines = new ArrayList<>();
+		try(BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
+			String line;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(!line.isEmpty()) {
+					lines.add(line.split("\\s+"));
+				}
+			}
+		}
+		if(lines.isEmpty()) {
+			throw new IOException("Empty map");
+		}
+		rows = lines.size();
+		cols = lines.get(0).length;
+		tiles = new short[cols * rows];
+		for(int row = 0; row < rows; row++) {
+			String[] numbers = lines.get(row);
+			if(numbers.length < cols) {
+				throw new IOException("Map row " + row + " has " + numbers.length + " tiles, expected " + cols);
+			}
+			for(int col = 0; col < cols; col++) {
+				tiles[row * cols + col] = Short.parseShort(numbers[col]);
+			}
+		}
+	}
+
+	@Override
+	public int getCols() {
+		return cols;
+	}
+
+	@Override
+	public int getRows() {
+		return rows;
+	}
+
+	@Override
+	public void readRegion(int firstCol, int firstRow, int cols, int rows, short[] out, int stride) {
+		for(int row = 0; row < rows; row++) {
+			System.arraycopy(tiles, (firstRow + row) * this.cols + firstCol, out, row * stride, cols);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
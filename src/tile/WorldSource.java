@@ -0,0 +1,13 @@
+package tile;
+
+import java.io.IOException;
+
+// Where the tile numbers of a map come from. Regions are read on demand, so a source
+// never has to hand the whole map over at once.
+public interface WorldSource {
+	int getCols();
+	int getRows();
+	// Copies the area into out row by row; row r starts at out[r * stride]
+	void readRegion(int firstCol, int firstRow, int cols, int rows, short[] out, int stride) throws IOException;
+	void close() throws IOException;
+}
@@ -1,100 +1,249 @@
 package tile;
 
 import java.awt.Graphics2D;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-
-import javax.imageio.ImageIO;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import main.UtilityTool;
 import main.gamePanel;
 
 public class tileManager {
 gamePanel gp;
 public tile[] tile;
-public int mapTileNum[][];
+// THE MAP LIVES IN REGIONS STREAMED IN AROUND THE PLAYER (SMALL MAPS ARE LOADED WHOLE)
+private RegionCache world;
+// -Dgame.world.budgetMB caps the memory used by loaded regions
+static final long WORLD_BUDGET = Long.getLong("game.world.budgetMB", 64) * 1024 * 1024;
+
+public static final int CHUNK_SIZE = 16;
+// BAKED CHUNKS ARE KEPT IN ACCESS ORDER AND THE LEAST RECENTLY DRAWN ONE IS DROPPED
+static final int MAX_CACHED_CHUNKS = 16;
+private final Map<Long, BufferedImage> chunkCache = new LinkedHashMap<Long, BufferedImage>(MAX_CACHED_CHUNKS, 0.75f, true) {
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+		return size() > MAX_CACHED_CHUNKS;
+	}
+};
 
 public tileManager(gamePanel gp) {
 	this.gp =gp;	
 	
 tile =new tile[10];
-mapTileNum = new int[gp.maxWorldCol][gp.maxWorldRow];
 getTileImage();
-loadMap("/maps/world01.txt") ;
+loadMap("/maps/world01.map") ;
 }
 public void getTileImage() {
+	setup(0, "grass", false);
+	setup(1, "wall", true);
+	setup(2, "water", true);
+	setup(3, "earth", false);
+	setup(4, "tree", true);
+	setup(5, "sand", false);
+}
+public void setup(int index, String imageName, boolean collision) {
 	try {
-		tile[0]= new tile();
-		tile[0].image =ImageIO.read(getClass().getResourceAsStream("/tiles/grass.png"));
-		tile[1]= new tile();;
-		tile[1].image=ImageIO.read(getClass().getResourceAsStream("/tiles/wall.png"));
-		tile[1].collision=true;
-		tile[2]= new tile();
-		tile[2].image =ImageIO.read(getClass().getResourceAsStream("/tiles/water.png"));
-		tile[2].collision=true;
-		tile[3]= new tile();
-		tile[3].image =ImageIO.read(getClass().getResourceAsStream("/tiles/earth.png"));
-		tile[4]= new tile();
-		tile[4].image =ImageIO.read(getClass().getResourceAsStream("/tiles/tree.png"));
-		tile[4].collision=true;
-		tile[5]= new tile();
-		tile[5].image =ImageIO.read(getClass().getResourceAsStream("/tiles/sand.png"));
-		
-
+		tile[index] = new tile();
+		tile[index].image = UtilityTool.loadImage("/tiles/" + imageName + ".png", gp.tileSize, gp.tileSize);
+		tile[index].collision = collision;
 	}catch(IOException e) {
 		e.printStackTrace();
 	}
 }
+// .map files are memory-mapped (see BinaryMapSource), anything else is read as a text map
 public void loadMap(String filePath) {
 	try {
+		if(filePath.endsWith(".map")) {
+			setWorld(new BinaryMapSource(resourcePath(filePath)));
+			return;
+		}
 		InputStream is =getClass().getResourceAsStream(filePath);
-		BufferedReader br = new BufferedReader(new InputStreamReader(is));
-		int col =0;
-		int row =0;
-		while(col<gp.maxWorldCol && row <gp.maxWorldRow) {
-			String line  = br.readLine();
-			while(col<gp.maxWorldCol ) {
-				String numbers[] =line.split(" ");
-				int num = Integer.parseInt(numbers[col]);
-				mapTileNum[col][row]=num;
-				col++;
-			}
-			if(col==gp.maxWorldCol) {
-				col =0;
-				row++;
+		if(is == null) {
+			throw new IOException("Missing map " + filePath);
+		}
+		setWorld(new TextMapSource(is));
+	}catch(IOException e) {
+		e.printStackTrace();
+	}
+}
+// Only real files can be mapped: a map packed in a jar is copied out first
+private Path resourcePath(String filePath) throws IOException {
+	URL url = getClass().getResource(filePath);
+	if(url == null) {
+		throw new IOException("Missing map " + filePath);
+	}
+	if("file".equals(url.getProtocol())) {
+		try {
+			return Paths.get(url.toURI());
+		}catch(URISyntaxException e) {
+			throw new IOException(e);
+		}
+	}
+	Path copy = Files.createTempFile("map", ".map");
+	copy.toFile().deleteOnExit();
+	try(InputStream is = url.openStream()) {
+		Files.copy(is, copy, StandardCopyOption.REPLACE_EXISTING);
+	}
+	return copy;
+}
+public void setWorld(WorldSource source) {
+	if(world != null) {
+		world.close();
+	}
+	// The world size comes from the map itself
+	gp.maxWorldCol = source.getCols();
+	gp.maxWorldRow = source.getRows();
+	world = new RegionCache(source, tile, WORLD_BUDGET);
+	if(world.fitsInBudget()) {
+		world.loadAll();
+	}
+	invalidateChunks();
+}
+// Called every tick: streams in the regions around the player
+public void update() {
+	world.requestAround(Math.floorDiv(gp.player.worldX, gp.tileSize), Math.floorDiv(gp.player.worldY, gp.tileSize));
+}
+// -1 outside the map or while the region is not loaded yet
+public int getTileNum(int col, int row) {
+	if(col < 0 || row < 0 || col >= gp.maxWorldCol || row >= gp.maxWorldRow) {
+		return -1;
+	}
+	Region region = world.get(col, row);
+	if(region == null) {
+		return -1;
+	}
+	return region.tiles[(row % Region.REGION_SIZE) * Region.REGION_SIZE + col % Region.REGION_SIZE];
+}
+public void setTile(int col, int row, int num) {
+	Region region = world.get(col, row);
+	if(region == null) {
+		return;
+	}
+	region.setTile(col % Region.REGION_SIZE, row % Region.REGION_SIZE, num, tile[num].collision);
+	region.dirty = true;
+	chunkCache.remove(chunkKey(col / CHUNK_SIZE, row / CHUNK_SIZE));
+}
+// OUTSIDE THE MAP, AND IN REGIONS NOT LOADED YET, COUNTS AS SOLID
+public boolean isSolid(int col, int row) {
+	if(col < 0 || row < 0 || col >= gp.maxWorldCol || row >= gp.maxWorldRow) {
+		return true;
+	}
+	Region region = world.get(col, row);
+	if(region == null) {
+		return true;
+	}
+	return (region.solid[row % Region.REGION_SIZE] & (1L << (col % Region.REGION_SIZE))) != 0;
+}
+public int loadedRegions() {
+	return world.loadedCount();
+}
+// The whole map is in memory and stays there, so no region is ever missing
+public boolean isResident() {
+	return world.fitsInBudget();
+}
+private boolean anySolid(int firstCol, int lastCol, int firstRow, int lastRow) {
+	for(int row = firstRow; row <= lastRow; row++) {
+		for(int col = firstCol; col <= lastCol; col++) {
+			if(isSolid(col, row)) {
+				return true;
 			}
 		}
-		br.close();
-	}catch(Exception e) {
-		
 	}
+	return false;
 }
-public void draw(Graphics2D  g2) {
-int worldCol =0;
-int worldRow =0;
-
-
-while(worldCol<gp.maxWorldCol && worldRow <gp.maxWorldRow) {
-	
-	int tileNum = mapTileNum[worldCol][worldRow];
-	int worldX = worldCol *gp.tileSize;
-	int worldY = worldRow *gp.tileSize;
-	int screenX = worldX -gp.player.worldX +gp.player.screenX;
-	int screenY = worldY -gp.player.worldY +gp.player.screenY;
-if(worldX +gp.tileSize>gp.player.worldX -gp.player.screenX && worldX -gp.tileSize <gp.player.worldX +gp.player.screenX
-		&& worldY + gp.tileSize >gp.player.worldY -gp.player.screenY && worldY -gp.tileSize<gp.player.worldY +gp.player.screenY) {
-	g2.drawImage(tile[tileNum].image, screenX,  screenY,   gp.tileSize, gp.tileSize, null);//22:20
-
+// Would moving the box (world pixels, edges inclusive) by dx,dy touch a solid tile?
+// Only the strip swept by the leading edge is tested, but all of it, so a step longer
+// than a tile cannot jump over a wall.
+public boolean sweepHitsSolid(int left, int top, int right, int bottom, int dx, int dy) {
+	int ts = gp.tileSize;
+	if(dx != 0) {
+		int from = dx < 0 ? left + dx : right;
+		int to = dx < 0 ? left : right + dx;
+		if(anySolid(Math.floorDiv(from, ts), Math.floorDiv(to, ts), Math.floorDiv(top, ts), Math.floorDiv(bottom, ts))) {
+			return true;
+		}
+	}
+	if(dy != 0) {
+		int from = dy < 0 ? top + dy : bottom;
+		int to = dy < 0 ? top : bottom + dy;
+		int sweptLeft = left + Math.min(dx, 0);
+		int sweptRight = right + Math.max(dx, 0);
+		if(anySolid(Math.floorDiv(sweptLeft, ts), Math.floorDiv(sweptRight, ts), Math.floorDiv(from, ts), Math.floorDiv(to, ts))) {
+			return true;
+		}
+	}
+	return false;
 }
-
-	worldCol++;
-if(worldCol == gp.maxWorldCol) {
-	worldCol=0;
-	worldRow++;
+public void invalidateChunks() {
+	chunkCache.clear();
+}
+// CHUNK CACHE : THE WORLD IS BAKED INTO CHUNK_SIZE x CHUNK_SIZE TILE IMAGES ON FIRST USE,
+// SO A FRAME ONLY BLITS THE 1-4 CHUNKS UNDER THE SCREEN WHATEVER THE WORLD SIZE
+private long chunkKey(int chunkCol, int chunkRow) {
+	return ((long) chunkCol << 32) | (chunkRow & 0xffffffffL);
 }
+// A chunk always lies inside one region; until that region is loaded nothing is drawn
+private BufferedImage getChunk(int chunkCol, int chunkRow) {
+	long key = chunkKey(chunkCol, chunkRow);
+	BufferedImage chunk = chunkCache.get(key);
+	if(chunk == null) {
+		Region region = world.get(chunkCol * CHUNK_SIZE, chunkRow * CHUNK_SIZE);
+		if(region == null) {
+			return null;
+		}
+		chunk = bakeChunk(region, chunkCol, chunkRow);
+		chunkCache.put(key, chunk);
+	}
+	return chunk;
 }
+private BufferedImage bakeChunk(Region region, int chunkCol, int chunkRow) {
+	int firstCol = chunkCol * CHUNK_SIZE;
+	int firstRow = chunkRow * CHUNK_SIZE;
+	int cols = Math.min(CHUNK_SIZE, gp.maxWorldCol - firstCol);
+	int rows = Math.min(CHUNK_SIZE, gp.maxWorldRow - firstRow);
+	int offset = (firstRow % Region.REGION_SIZE) * Region.REGION_SIZE + firstCol % Region.REGION_SIZE;
+	BufferedImage chunk = UtilityTool.createCompatibleImage(cols * gp.tileSize, rows * gp.tileSize, Transparency.OPAQUE);
+	Graphics2D g2 = chunk.createGraphics();
+	for(int row = 0; row < rows; row++) {
+		for(int col = 0; col < cols; col++) {
+			int tileNum = region.tiles[offset + row * Region.REGION_SIZE + col];
+			if(tileNum >= 0 && tileNum < tile.length && tile[tileNum] != null) {
+				g2.drawImage(tile[tileNum].image, col * gp.tileSize, row * gp.tileSize, null);
+			}
+		}
+	}
+	g2.dispose();
+	return chunk;
+}
+public void draw(Graphics2D  g2) {
+	int chunkPixels = CHUNK_SIZE * gp.tileSize;
+	int chunkCols = (gp.maxWorldCol + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	int chunkRows = (gp.maxWorldRow + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	// WORLD POSITION OF THE TOP LEFT CORNER OF THE SCREEN
+	int viewX = gp.player.renderX - gp.player.screenX;
+	int viewY = gp.player.renderY - gp.player.screenY;
+
+	int firstChunkCol = Math.max(0, Math.floorDiv(viewX, chunkPixels));
+	int lastChunkCol = Math.min(chunkCols - 1, Math.floorDiv(viewX + gp.screenWidth - 1, chunkPixels));
+	int firstChunkRow = Math.max(0, Math.floorDiv(viewY, chunkPixels));
+	int lastChunkRow = Math.min(chunkRows - 1, Math.floorDiv(viewY + gp.screenHeight - 1, chunkPixels));
 
+	for(int chunkRow = firstChunkRow; chunkRow <= lastChunkRow; chunkRow++) {
+		for(int chunkCol = firstChunkCol; chunkCol <= lastChunkCol; chunkCol++) {
+			BufferedImage chunk = getChunk(chunkCol, chunkRow);
+			if(chunk != null) {
+				g2.drawImage(chunk, chunkCol * chunkPixels - viewX, chunkRow * chunkPixels - viewY, null);
+			}
+		}
+	}
 }
 }